@@ -1,21 +1,80 @@
 package me.prisonranksx.utilities;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.IntConsumer;
 import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongConsumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 
@@ -32,1240 +91,6656 @@ import org.bukkit.scheduler.BukkitTask;
  */
 public class BukkitWorker {
 
-	private static final WorkloadRunnable MAIN_WORKLOAD_RUNNABLE = new WorkloadRunnable();
+	private static final WorkloadRunnable MAIN_WORKLOAD_RUNNABLE = new WorkloadRunnable().shared();
 	private static final Map<Integer, WorkloadRunnable> WORKLOADS = new HashMap<>();
-	private static final JavaPlugin PLUGIN = JavaPlugin.getProvidingPlugin(BukkitWorker.class);
+	private static final long NANOS_PER_TICK = 50_000_000L;
+	private static final Map<LaneKey, WorkloadRunnable> LANES = new ConcurrentHashMap<>();
+	private static final Map<String, WorkloadOwner> OWNERS = new ConcurrentHashMap<>();
+	private static volatile TaskScheduler scheduler = new BukkitTaskScheduler();
+	private static volatile WorkloadOwner defaultOwner;
+	private static volatile Watchdog watchdog;
+	private static volatile TraceRecorder tracer;
+	private static volatile TaskScheduler traceHookedScheduler;
+	private static final AtomicLong FAILURES = new AtomicLong();
+
+	/**
+	 * The providing plugin is only looked up when bukkit is actually used, so
+	 * workloads can run outside of a server through a {@link TickSimulator}.
+	 */
+	private static class PluginHolder {
+
+		private static final JavaPlugin PLUGIN = JavaPlugin.getProvidingPlugin(BukkitWorker.class);
 
-	static {
-		MAIN_WORKLOAD_RUNNABLE.start();
 	}
 
-	private static interface Workload {
+	/**
+	 * Abstraction of the scheduler and clock that workload runnables are driven
+	 * by. Bukkit's scheduler is used by default, {@link TickSimulator} drives them
+	 * in virtual time instead.
+	 */
+	public interface TaskScheduler {
 
-		/**
-		 * 
-		 * @return true if computation is need, false otherwise
-		 */
-		boolean compute();
+		ScheduledTask runTask(Runnable runnable);
 
-	}
+		ScheduledTask runTaskAsynchronously(Runnable runnable);
 
-	public static class LoopFuture<T> {
+		ScheduledTask runTaskTimer(Runnable runnable, long delay, long period);
 
-		private CompletableFuture<T> completableFuture;
-		private int currentElementIndex;
-		private T currentElement;
+		ScheduledTask runTaskTimerAsynchronously(Runnable runnable, long delay, long period);
 
-		public LoopFuture() {
-			completableFuture = new CompletableFuture<T>();
-		}
+		/**
+		 * @return current value of the clock used for tick budgets, in nanoseconds
+		 */
+		long nanoTime();
 
-		public static <T> LoopFuture<T> createCompleted() {
-			LoopFuture<T> loopFuture = new LoopFuture<>();
-			loopFuture.completableFuture.complete(null);
-			return loopFuture;
-		}
+		boolean isPrimaryThread();
 
-		public static void setLoopFuture(LoopFuture<?> loopFuture, LoopFuture<?> loopFuture2) {
-			loopFuture = loopFuture2;
+		/**
+		 * @return true if workloads of different lanes can run on different threads
+		 */
+		default boolean isRegionized() {
+			return false;
 		}
 
-		public static void forceComplete(LoopFuture<?> loopFuture) {
-			loopFuture.forceComplete();
+		/**
+		 * Schedules a timer on the thread that owns the lane, schedulers that aren't
+		 * regionized run it like any other timer.
+		 */
+		default ScheduledTask runLaneTimer(LaneKey lane, Runnable runnable, long delay, long period) {
+			return runTaskTimer(runnable, delay, period);
 		}
 
 		/**
+		 * Registers a hook that's called on the main thread once the tick's work is
+		 * done, with the nanoseconds left before the tick's deadline.
 		 * 
-		 * @return Completes the loop future with a null object
+		 * @param hook accepts the remaining nanoseconds of the tick
+		 * @return false if the end of a tick can't be detected by this scheduler
 		 */
-		public LoopFuture<T> forceComplete() {
-			completableFuture.complete(null);
-			return this;
+		default boolean registerTickEndHook(LongConsumer hook) {
+			return false;
 		}
 
 		/**
-		 * @param t object to pass for completion
-		 * @return Completes the loop future with a specific object
+		 * @return logger that failing workloads are reported to
 		 */
-		public LoopFuture<T> forceComplete(T t) {
-			completableFuture.complete(t);
-			return this;
+		default Logger getLogger() {
+			return Logger.getLogger("BukkitWorker");
 		}
 
-		public CompletableFuture<Void> whenCompleteDoAsync(Runnable runnable) {
-			return completableFuture.thenRunAsync(runnable);
+	}
+
+	public interface ScheduledTask {
+
+		void cancel();
+
+		boolean isCancelled();
+
+	}
+
+	/**
+	 * Runs tasks through bukkit's scheduler, or through the global, region and
+	 * async schedulers on region threaded servers (Folia) where bukkit's scheduler
+	 * isn't supported. Those are accessed reflectively so the bukkit api is enough
+	 * to compile against.
+	 */
+	public static class BukkitTaskScheduler implements TaskScheduler {
+
+		private static final boolean REGIONIZED = isClassPresent("io.papermc.paper.threadedregions.RegionizedServer");
+
+		@Override
+		public ScheduledTask runTask(Runnable runnable) {
+			if (REGIONIZED) return FoliaSchedulers.invoke(FoliaSchedulers.GLOBAL_RUN, FoliaSchedulers.global(),
+					PluginHolder.PLUGIN, FoliaSchedulers.consumer(runnable));
+			return wrap(Bukkit.getScheduler().runTask(PluginHolder.PLUGIN, runnable));
 		}
 
-		public CompletableFuture<Void> whenCompleteDoSync(Runnable runnable) {
-			return completableFuture.thenRun(runnable);
+		@Override
+		public ScheduledTask runTaskAsynchronously(Runnable runnable) {
+			if (REGIONIZED) return FoliaSchedulers.invoke(FoliaSchedulers.ASYNC_RUN, FoliaSchedulers.async(),
+					PluginHolder.PLUGIN, FoliaSchedulers.consumer(runnable));
+			return wrap(Bukkit.getScheduler().runTaskAsynchronously(PluginHolder.PLUGIN, runnable));
 		}
 
-		public CompletableFuture<Void> whenCompleteAcceptAsync(Consumer<T> consumer) {
-			return completableFuture.thenAcceptAsync(consumer);
+		@Override
+		public ScheduledTask runTaskTimer(Runnable runnable, long delay, long period) {
+			if (REGIONIZED) return FoliaSchedulers.invoke(FoliaSchedulers.GLOBAL_TIMER, FoliaSchedulers.global(),
+					PluginHolder.PLUGIN, FoliaSchedulers.consumer(runnable), Math.max(1, delay), period);
+			return wrap(Bukkit.getScheduler().runTaskTimer(PluginHolder.PLUGIN, runnable, delay, period));
 		}
 
-		public CompletableFuture<Void> whenCompleteAcceptSync(Consumer<T> consumer) {
-			return completableFuture.thenAccept(consumer);
+		@Override
+		public ScheduledTask runTaskTimerAsynchronously(Runnable runnable, long delay, long period) {
+			if (REGIONIZED) return FoliaSchedulers.invoke(FoliaSchedulers.ASYNC_TIMER, FoliaSchedulers.async(),
+					PluginHolder.PLUGIN, FoliaSchedulers.consumer(runnable), Math.max(1, delay) * 50, period * 50,
+					TimeUnit.MILLISECONDS);
+			return wrap(Bukkit.getScheduler().runTaskTimerAsynchronously(PluginHolder.PLUGIN, runnable, delay, period));
 		}
 
-		public CompletableFuture<T> getCompletableFuture() {
-			return completableFuture;
+		@Override
+		public boolean isRegionized() {
+			return REGIONIZED;
 		}
 
-		public int getCurrentIndex() {
-			return currentElementIndex;
+		@Override
+		public ScheduledTask runLaneTimer(LaneKey lane, Runnable runnable, long delay, long period) {
+			if (!REGIONIZED) return runTaskTimer(runnable, delay, period);
+			World world = Bukkit.getWorld(lane.getWorldId());
+			if (world == null) throw new IllegalStateException("Lane scheduling failure: world of " + lane + " is not loaded!");
+			return FoliaSchedulers.invoke(FoliaSchedulers.REGION_TIMER, FoliaSchedulers.region(), PluginHolder.PLUGIN,
+					world, lane.getChunkX(), lane.getChunkZ(), FoliaSchedulers.consumer(runnable), Math.max(1, delay),
+					period);
 		}
 
-		public T getCurrentElement() {
-			return currentElement;
+		/**
+		 * Uses paper's {@code ServerTickEndEvent}, not available on spigot.
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public boolean registerTickEndHook(LongConsumer hook) {
+			Class<? extends Event> eventClass;
+			Method getTimeRemaining;
+			try {
+				eventClass = (Class<? extends Event>) Class
+						.forName("com.destroystokyo.paper.event.server.ServerTickEndEvent");
+				getTimeRemaining = eventClass.getMethod("getTimeRemaining");
+			} catch (ReflectiveOperationException e) {
+				return false;
+			}
+			Bukkit.getPluginManager().registerEvent(eventClass, new Listener() {}, EventPriority.MONITOR,
+					(listener, event) -> {
+						if (!eventClass.isInstance(event)) return;
+						try {
+							hook.accept((Long) getTimeRemaining.invoke(event));
+						} catch (ReflectiveOperationException e) {
+							throw new EventException(e);
+						}
+					}, PluginHolder.PLUGIN);
+			return true;
 		}
 
 		@Override
-		public String toString() {
-			return currentElement + ":" + currentElementIndex + ":" + completableFuture.toString();
+		public long nanoTime() {
+			return System.nanoTime();
 		}
 
-	}
+		@Override
+		public Logger getLogger() {
+			return PluginHolder.PLUGIN.getLogger();
+		}
 
-	public static abstract class AbstractPreparedLoop<T> {
+		@Override
+		public boolean isPrimaryThread() {
+			return Bukkit.isPrimaryThread();
+		}
 
-		private Object object;
+		private static ScheduledTask wrap(BukkitTask bukkitTask) {
+			return new ScheduledTask() {
 
-		/**
-		 * Start a for loop
-		 * 
-		 * @param action action to perform on loop element
-		 * @return LoopFuture
-		 */
-		public abstract LoopFuture<T> forEach(Consumer<? super T> action);
+				@Override
+				public void cancel() {
+					bukkitTask.cancel();
+				}
 
-		/**
-		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
-		 * methods should be handled manually.
-		 * 
-		 * @param action action to perform
-		 * @return LoopFuture
-		 */
-		public abstract LoopFuture<T> asyncForEach(Consumer<? super T> action);
+				@Override
+				public boolean isCancelled() {
+					return bukkitTask.isCancelled();
+				}
 
-		/**
-		 * Start a for loop
-		 * 
-		 * @param action          action to perform on loop element
-		 * @param maxMilliseconds how many milliseconds a tick can last, increasing this
-		 *                        value will speed up the task inreturn of decreasing
-		 *                        the tps by a little
-		 * @return LoopFuture
-		 */
-		public abstract LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action);
+			};
+		}
 
-		/**
-		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
-		 * methods should be handled manually.
-		 * 
-		 * @param action          action to perform
-		 * @param maxMilliseconds how many milliseconds a tick can last, increasing this
-		 *                        value will speed up the task inreturn of decreasing
-		 *                        the tps by a little
-		 * @return LoopFuture
-		 */
-		public abstract LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action);
+		private static boolean isClassPresent(String className) {
+			try {
+				Class.forName(className);
+				return true;
+			} catch (ClassNotFoundException e) {
+				return false;
+			}
+		}
 
-		public abstract void forceBreak();
+	}
 
-		public BukkitTask sync(Runnable runnable) {
-			return Bukkit.getScheduler().runTask(PLUGIN, runnable);
+	/**
+	 * Reflective access to the schedulers of region threaded servers, only loaded
+	 * when running on one.
+	 */
+	private static class FoliaSchedulers {
+
+		private static final String PACKAGE = "io.papermc.paper.threadedregions.scheduler.";
+
+		private static final Method GLOBAL_RUN, GLOBAL_TIMER, REGION_TIMER, ASYNC_RUN, ASYNC_TIMER, TASK_CANCEL,
+				TASK_IS_CANCELLED;
+		private static final Object GLOBAL_SCHEDULER, REGION_SCHEDULER, ASYNC_SCHEDULER;
+
+		static {
+			try {
+				Class<?> global = Class.forName(PACKAGE + "GlobalRegionScheduler");
+				Class<?> region = Class.forName(PACKAGE + "RegionScheduler");
+				Class<?> async = Class.forName(PACKAGE + "AsyncScheduler");
+				Class<?> task = Class.forName(PACKAGE + "ScheduledTask");
+				GLOBAL_RUN = global.getMethod("run", Plugin.class, Consumer.class);
+				GLOBAL_TIMER = global.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class);
+				REGION_TIMER = region.getMethod("runAtFixedRate", Plugin.class, World.class, int.class, int.class,
+						Consumer.class, long.class, long.class);
+				ASYNC_RUN = async.getMethod("runNow", Plugin.class, Consumer.class);
+				ASYNC_TIMER = async.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class,
+						TimeUnit.class);
+				TASK_CANCEL = task.getMethod("cancel");
+				TASK_IS_CANCELLED = task.getMethod("isCancelled");
+				GLOBAL_SCHEDULER = Bukkit.class.getMethod("getGlobalRegionScheduler").invoke(null);
+				REGION_SCHEDULER = Bukkit.class.getMethod("getRegionScheduler").invoke(null);
+				ASYNC_SCHEDULER = Bukkit.class.getMethod("getAsyncScheduler").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Region scheduler lookup failure: " + e, e);
+			}
 		}
 
-		public BukkitTask async(Runnable runnable) {
-			return Bukkit.getScheduler().runTaskAsynchronously(PLUGIN, runnable);
+		private static Object global() {
+			return GLOBAL_SCHEDULER;
 		}
 
-		public void storeObject(Object object) {
-			this.object = object;
+		private static Object region() {
+			return REGION_SCHEDULER;
 		}
 
-		public Object getObject() {
-			return object;
+		private static Object async() {
+			return ASYNC_SCHEDULER;
 		}
 
-	}
+		private static Consumer<Object> consumer(Runnable runnable) {
+			return task -> runnable.run();
+		}
 
-	public static class PreparedLoop<T> extends AbstractPreparedLoop<T> {
+		private static ScheduledTask invoke(Method method, Object scheduler, Object... arguments) {
+			Object task;
+			try {
+				task = method.invoke(scheduler, arguments);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Region scheduling failure: " + e, e);
+			}
+			return new ScheduledTask() {
+
+				@Override
+				public void cancel() {
+					try {
+						TASK_CANCEL.invoke(task);
+					} catch (ReflectiveOperationException e) {
+						throw new IllegalStateException("Region task cancellation failure: " + e, e);
+					}
+				}
 
-		private Iterable<T> iterable;
-		private LoopFuture<T> loopFuture;
-		private Predicate<T> cancelationPredicate;
-		private Predicate<T> continuationPredicate;
+				@Override
+				public boolean isCancelled() {
+					try {
+						return (Boolean) TASK_IS_CANCELLED.invoke(task);
+					} catch (ReflectiveOperationException e) {
+						throw new IllegalStateException("Region task state failure: " + e, e);
+					}
+				}
 
-		public PreparedLoop(@Nonnull Iterable<T> iterable) {
-			this.iterable = iterable;
-			if (iterable == null)
-				throw new NullPointerException("PreparedLoop creation failure: iterable or collection is null!");
-			else
-				loopFuture = new LoopFuture<T>();
+			};
 		}
 
-		/**
-		 * Forcefully breaks a loop by setting a break condition that always returns
-		 * true
-		 * 
-		 * @param preparedLoop prepared loop to break
-		 */
-		public static void forceBreak(PreparedLoop<?> preparedLoop) {
-			preparedLoop.cancelationPredicate = o -> (o == null || o instanceof Object);
+	}
+
+	/**
+	 * Identifies an execution lane, a square of
+	 * {@code 2^LANE_SHIFT x 2^LANE_SHIFT} chunks of a world. On region threaded
+	 * servers, all chunks of a lane are owned by the same region thread.
+	 */
+	public static final class LaneKey {
+
+		public static final int LANE_SHIFT = 4;
+
+		private final UUID worldId;
+		private final int laneX, laneZ;
+
+		private LaneKey(UUID worldId, int laneX, int laneZ) {
+			this.worldId = worldId;
+			this.laneX = laneX;
+			this.laneZ = laneZ;
 		}
 
-		public PreparedLoop<T> breakIf(Predicate<T> predicate) {
-			cancelationPredicate = predicate;
-			return this;
+		public static LaneKey of(UUID worldId, int chunkX, int chunkZ) {
+			return new LaneKey(worldId, chunkX >> LANE_SHIFT, chunkZ >> LANE_SHIFT);
 		}
 
-		public PreparedLoop<T> alsoBreakIf(Predicate<T> predicate) {
-			cancelationPredicate.and(predicate);
-			return this;
+		public static LaneKey of(World world, int chunkX, int chunkZ) {
+			return of(world.getUID(), chunkX, chunkZ);
 		}
 
-		public PreparedLoop<T> continueIf(Predicate<T> predicate) {
-			continuationPredicate = predicate;
-			return this;
+		public static LaneKey of(Location location) {
+			return of(location.getWorld().getUID(), location.getBlockX() >> 4, location.getBlockZ() >> 4);
 		}
 
-		public PreparedLoop<T> alsoContinueIf(Predicate<T> predicate) {
-			continuationPredicate.and(predicate);
-			return this;
+		public UUID getWorldId() {
+			return worldId;
 		}
 
 		/**
-		 * Forcefully breaks a loop by setting a break condition that always returns
-		 * true
+		 * @return x of the lane's first chunk
 		 */
-		@Override
-		public void forceBreak() {
-			cancelationPredicate = o -> (o == null || o instanceof Object);
+		public int getChunkX() {
+			return laneX << LANE_SHIFT;
 		}
 
-		@Override
-		public LoopFuture<T> forEach(Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-			workloadRunnable.start();
-			for (T element : iterable) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+		/**
+		 * @return z of the lane's first chunk
+		 */
+		public int getChunkZ() {
+			return laneZ << LANE_SHIFT;
 		}
 
 		@Override
-		public LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-			workloadRunnable.start();
-			for (T element : iterable) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+		public boolean equals(Object object) {
+			if (this == object) return true;
+			if (!(object instanceof LaneKey)) return false;
+			LaneKey other = (LaneKey) object;
+			return laneX == other.laneX && laneZ == other.laneZ && worldId.equals(other.worldId);
 		}
 
 		@Override
-		public String toString() {
-			return iterable.toString() + " " + loopFuture.toString();
+		public int hashCode() {
+			return (worldId.hashCode() * 31 + laneX) * 31 + laneZ;
 		}
 
 		@Override
-		public LoopFuture<T> asyncForEach(Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-			workloadRunnable.startAsync();
-			for (T element : iterable) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+		public String toString() {
+			return worldId + ":" + laneX + ":" + laneZ;
 		}
 
-		@Override
-		public LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-			workloadRunnable.startAsync();
-			for (T element : iterable) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
-		}
+	}
 
+	/**
+	 * Replaces the scheduler and clock used by workload runnables. Runnables that
+	 * are already running keep their current scheduled task, the main workload is
+	 * moved to the new scheduler on its next use.
+	 * 
+	 * @param taskScheduler scheduler to use, e.g a {@link TickSimulator}
+	 */
+	public static void setScheduler(@Nonnull TaskScheduler taskScheduler) {
+		if (taskScheduler == null)
+			throw new NullPointerException("BukkitWorker scheduler replacement failure: scheduler is null!");
+		MAIN_WORKLOAD_RUNNABLE.cancel();
+		scheduler = taskScheduler;
 	}
 
-	public static class ArrayPreparedLoop<T> extends AbstractPreparedLoop<T> {
+	public static TaskScheduler getScheduler() {
+		return scheduler;
+	}
 
-		private T[] array;
-		private LoopFuture<T> loopFuture;
-		private Predicate<T> cancelationPredicate;
-		private Predicate<T> continuationPredicate;
+	/**
+	 * Gets the runnable of an execution lane. On region threaded servers every
+	 * lane has its own runnable that runs on the thread owning the lane's chunks,
+	 * otherwise every lane is the main workload.
+	 * 
+	 * @param lane lane to get the runnable of
+	 * @return runnable of the lane, started if it wasn't
+	 */
+	public static WorkloadRunnable lane(LaneKey lane) {
+		if (!scheduler.isRegionized()) return mainWorkload();
+		WorkloadRunnable workloadRunnable = LANES.computeIfAbsent(lane, key -> new WorkloadRunnable().shared());
+		if (!workloadRunnable.isRunning()) workloadRunnable.startInLane(lane);
+		return workloadRunnable;
+	}
 
-		public ArrayPreparedLoop(@Nonnull T[] array) {
-			this.array = array;
-			if (array == null)
-				throw new NullPointerException("PreparedLoop creation failure: array is null!");
-			else
-				loopFuture = new LoopFuture<T>();
-		}
+	/**
+	 * Runs the specified {@code runnable} in the lane of the location, safe to
+	 * call from any thread.
+	 * 
+	 * @param location location whose chunk the runnable works on
+	 * @param runnable code to run () ->
+	 */
+	public static void runAt(Location location, Runnable runnable) {
+		lane(LaneKey.of(location)).post(new RunnableWorkload(runnable));
+	}
 
-		/**
-		 * Forcefully breaks a loop by setting a break condition that always returns
-		 * true
-		 * 
-		 * @param preparedLoop prepared loop to break
-		 */
-		public static void forceBreak(ArrayPreparedLoop<?> preparedLoop) {
-			preparedLoop.cancelationPredicate = o -> (o == null || o instanceof Object);
-		}
+	/**
+	 * Runs the specified {@code runnable} in the lane of the chunk, safe to call
+	 * from any thread.
+	 * 
+	 * @param world    world of the chunk
+	 * @param chunkX   x of the chunk the runnable works on
+	 * @param chunkZ   z of the chunk the runnable works on
+	 * @param runnable code to run () ->
+	 */
+	public static void runAt(World world, int chunkX, int chunkZ, Runnable runnable) {
+		lane(LaneKey.of(world, chunkX, chunkZ)).post(new RunnableWorkload(runnable));
+	}
 
-		public ArrayPreparedLoop<T> breakIf(Predicate<T> predicate) {
-			cancelationPredicate = predicate;
-			return this;
+	/**
+	 * Loops through the elements in the lanes they belong to, so elements of
+	 * different lanes are processed in parallel on region threaded servers, and
+	 * in the main workload otherwise. Elements of the same lane keep their order.
+	 * 
+	 * @param <T>      type of elements
+	 * @param elements elements to loop through
+	 * @param laneOf   gets the lane an element belongs to, e.g
+	 *                 {@code block -> LaneKey.of(block.getLocation())}
+	 * @param action   action to perform on loop elements
+	 * @return LoopFuture that completes once every lane is done
+	 */
+	public static <T> LoopFuture<T> forEachInLanes(Iterable<T> elements, Function<? super T, LaneKey> laneOf,
+			Consumer<? super T> action) {
+		LoopFuture<T> loopFuture = new LoopFuture<>();
+		List<WorkloadRunnable> usedLanes = new ArrayList<>();
+		Map<LaneKey, WorkloadRunnable> lanes = new HashMap<>();
+		for (T element : elements) {
+			WorkloadRunnable workloadRunnable = lanes.computeIfAbsent(laneOf.apply(element), BukkitWorker::lane);
+			if (!usedLanes.contains(workloadRunnable)) usedLanes.add(workloadRunnable);
+			workloadRunnable.post(new ConsumerWorkload<T>(element, action));
+			loopFuture.currentElement = element;
+			loopFuture.currentElementIndex++;
 		}
+		if (usedLanes.isEmpty()) return loopFuture.forceComplete();
+		AtomicInteger remainingLanes = new AtomicInteger(usedLanes.size());
+		for (WorkloadRunnable workloadRunnable : usedLanes) workloadRunnable.post(new RunnableWorkload(() -> {
+			if (remainingLanes.decrementAndGet() == 0) loopFuture.completableFuture.complete(loopFuture.currentElement);
+		}));
+		return loopFuture;
+	}
 
-		public ArrayPreparedLoop<T> alsoBreakIf(Predicate<T> predicate) {
-			cancelationPredicate.and(predicate);
-			return this;
-		}
+	public static int getLaneCount() {
+		return LANES.size();
+	}
 
-		public ArrayPreparedLoop<T> continueIf(Predicate<T> predicate) {
-			continuationPredicate = predicate;
-			return this;
-		}
+	/**
+	 * Sets the budget shared by runnables with a deadline every tick, see
+	 * {@linkplain WorkloadRunnable#setDeadline(long)}. Runnables with slack only
+	 * get what they need to finish in time and the rest goes to the earliest
+	 * deadlines, up to each runnable's own budget.
+	 * 
+	 * @param millisPerTick milliseconds per tick for all deadline runnables
+	 *                      altogether, 10.0 by default
+	 */
+	public static void setDeadlineBudget(double millisPerTick) {
+		Deadlines.budgetNanos = (long) (millisPerTick * 1E6);
+	}
 
-		public ArrayPreparedLoop<T> alsoContinueIf(Predicate<T> predicate) {
-			continuationPredicate.and(predicate);
-			return this;
-		}
+	/**
+	 * @param listener called on the main thread, once per runnable, when it's
+	 *                 predicted to miss its deadline even with the whole budget,
+	 *                 or null to log a warning instead
+	 */
+	public static void setDeadlineMissListener(Consumer<DeadlineMiss> listener) {
+		Deadlines.missListener = listener;
+	}
 
-		/**
-		 * Forcefully breaks a loop by setting a break condition that always returns
-		 * true
-		 */
-		@Override
-		public void forceBreak() {
-			cancelationPredicate = o -> (o == null || o instanceof Object);
-		}
+	/**
+	 * Sets how much of a tick's idle time is used by idle time runnables, see
+	 * {@linkplain WorkloadRunnable#startIdle()}.
+	 * 
+	 * @param safetyMarginMillis milliseconds to leave unused before the tick's
+	 *                           deadline, 2.0 by default
+	 * @param fallbackMillis     budget per tick when the end of a tick can't be
+	 *                           detected (non paper servers), 2.5 by default
+	 */
+	public static void setIdleTimeLimits(double safetyMarginMillis, double fallbackMillis) {
+		IdleTime.safetyMarginNanos = (long) (safetyMarginMillis * 1E6);
+		IdleTime.fallbackNanos = (long) (fallbackMillis * 1E6);
+	}
 
-		@Override
-		public LoopFuture<T> forEach(Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-			workloadRunnable.start();
-			for (T element : array) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
-		}
+	/**
+	 * Creates or updates a named owner whose runnables share a per-tick time
+	 * quota. Quotas are enforced with a token bucket that refills by
+	 * {@code quotaMillisPerTick} every tick, up to {@code burstMillis}.
+	 * 
+	 * @param name               unique name of the owner, e.g a plugin name
+	 * @param quotaMillisPerTick milliseconds the owner's runnables may use per tick
+	 *                           altogether
+	 * @param burstMillis        maximum milliseconds that can be saved up by idle
+	 *                           ticks and spent in a single tick
+	 * @return the owner, to be assigned to runnables, tasks and loop templates
+	 */
+	public static WorkloadOwner createOwner(String name, double quotaMillisPerTick, double burstMillis) {
+		WorkloadOwner owner = OWNERS.computeIfAbsent(name, WorkloadOwner::new);
+		owner.setQuota(quotaMillisPerTick, burstMillis);
+		return owner;
+	}
 
-		@Override
-		public LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-			workloadRunnable.start();
-			for (T element : array) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+	public static WorkloadOwner getOwner(String name) {
+		return OWNERS.get(name);
+	}
+
+	/**
+	 * Sets the owner that runnables created from now on are assigned to, including
+	 * the main workload.
+	 * 
+	 * @param owner owner to assign by default, or null for unlimited runnables
+	 */
+	public static void setDefaultOwner(WorkloadOwner owner) {
+		defaultOwner = owner;
+		MAIN_WORKLOAD_RUNNABLE.setOwner(owner);
+	}
+
+	/**
+	 * @return a line per owner with its quota and how much of it has been used
+	 */
+	public static String getQuotaReport() {
+		StringBuilder report = new StringBuilder();
+		for (WorkloadOwner owner : OWNERS.values()) report.append(owner.toString()).append('\n');
+		return report.toString();
+	}
+
+	/**
+	 * Starts a watchdog thread that reports workloads whose single
+	 * {@code compute()} call runs for longer than the threshold, replacing any
+	 * previously started watchdog. Runnables are only tracked while a watchdog is
+	 * running.
+	 * 
+	 * @param thresholdMillis milliseconds a single workload may run before it's
+	 *                        reported
+	 * @param quarantine      whether the runnable of a stuck workload is cancelled
+	 *                        and its pending workloads dropped once it returns,
+	 *                        its loop future and pending supplier workloads are
+	 *                        then completed exceptionally. The main workload, lanes
+	 *                        and runnables run in idle time or by deadline are
+	 *                        shared or coordinated, so they're never quarantined,
+	 *                        only the stuck workload isn't retried.
+	 * @param reporter        called on the watchdog thread for every stuck workload
+	 */
+	public static void startWatchdog(double thresholdMillis, boolean quarantine,
+			@Nonnull Consumer<StuckWorkload> reporter) {
+		if (reporter == null) throw new NullPointerException("Watchdog creation failure: reporter is null!");
+		synchronized (Watchdog.class) {
+			if (watchdog != null) watchdog.interrupt();
+			watchdog = new Watchdog((long) (thresholdMillis * 1E6), quarantine, reporter);
+			watchdog.start();
 		}
+	}
 
-		@Override
-		public LoopFuture<T> asyncForEach(Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-			workloadRunnable.startAsync();
-			for (T element : array) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+	public static void stopWatchdog() {
+		synchronized (Watchdog.class) {
+			if (watchdog != null) watchdog.interrupt();
+			watchdog = null;
 		}
+	}
 
-		@Override
-		public LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-			workloadRunnable.startAsync();
-			for (T element : array) {
-				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
-				workloadRunnable.addWorkload(new ConsumerWorkload<T>(element, action));
-				loopFuture.currentElement = element;
-				loopFuture.currentElementIndex++;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
+	/**
+	 * Starts recording a trace of every runnable's slices and workloads, posted
+	 * workloads and tick ends into per-thread ring buffers, replacing any trace
+	 * being recorded. Once a ring is full the oldest events are overwritten.
+	 * 
+	 * @param eventsPerThread capacity of each thread's ring, every event takes 24
+	 *                        bytes
+	 */
+	public static void startTrace(int eventsPerThread) {
+		tracer = new TraceRecorder(Math.max(16, eventsPerThread));
+		synchronized (TraceRecorder.class) {
+			TaskScheduler taskScheduler = scheduler;
+			if (traceHookedScheduler == taskScheduler) return;
+			traceHookedScheduler = taskScheduler;
+			// hooks can't be removed, so a single one reads whichever trace is recorded
+			taskScheduler.registerTickEndHook(remainingNanos -> {
+				TraceRecorder recorder = tracer;
+				if (recorder != null && traceHookedScheduler == taskScheduler)
+					recorder.ring().record(TraceRecorder.TICK_END, 0, 0, System.nanoTime(), remainingNanos);
 			});
-			return loopFuture;
 		}
+	}
 
-		@Override
-		public String toString() {
-			return array.toString() + " " + loopFuture.toString();
+	public static void stopTrace() {
+		tracer = null;
+	}
+
+	/**
+	 * Writes the events of the current or last recorded trace to a file, see
+	 * {@linkplain #summariseTrace(Path)}. Best called after
+	 * {@linkplain #stopTrace()}, events written while the file is written may be
+	 * missing.
+	 * 
+	 * @param file file to write the trace to
+	 * @return amount of written events
+	 */
+	public static long writeTrace(Path file) {
+		TraceRecorder recorder = TraceRecorder.last;
+		if (recorder == null) throw new IllegalStateException("Trace write failure: no trace was recorded!");
+		try {
+			return recorder.write(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
+	}
 
+	/**
+	 * Reads a trace file, which can be done outside of the server.
+	 * 
+	 * @param file file written by {@linkplain #writeTrace(Path)}
+	 * @return time breakdown per runnable
+	 */
+	public static TraceSummary summariseTrace(Path file) {
+		try {
+			return TraceSummary.read(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
-	public static class IntPreparedLoop {
+	/**
+	 * @return how many times a workload threw, across every runnable
+	 */
+	public static long getFailureCount() {
+		return FAILURES.get();
+	}
 
-		private int size, currentIndex;
-		private IntCondition intCondition;
-		private IntOperation intOperation;
-		private LoopFuture<Integer> loopFuture;
-		private IntPredicate cancelationPredicate;
-		private IntPredicate continuationPredicate;
+	/**
+	 * @return the main workload, started on first use
+	 */
+	private static WorkloadRunnable mainWorkload() {
+		if (!MAIN_WORKLOAD_RUNNABLE.isRunning()) MAIN_WORKLOAD_RUNNABLE.start();
+		return MAIN_WORKLOAD_RUNNABLE;
+	}
 
-		public IntPreparedLoop(int startIndex, IntCondition intCondition, IntOperation intOperation, int size) {
-			this.size = size;
-			this.intCondition = intCondition;
-			this.intOperation = intOperation;
-			this.intOperation.set(startIndex);
-			loopFuture = new LoopFuture<Integer>();
-		}
+	private static interface Workload {
 
 		/**
-		 * Forcefully breaks a loop by setting a break condition that always returns
-		 * true
 		 * 
-		 * @param intPreparedLoop prepared loop to break
+		 * @return true if computation is need, false otherwise
 		 */
-		public static void forceBreak(IntPreparedLoop intPreparedLoop) {
-			intPreparedLoop.cancelationPredicate = i -> (i <= Integer.MAX_VALUE);
+		boolean compute();
+
+		/**
+		 * Called after the workload is computed, pooled workloads return themselves to
+		 * their pool here.
+		 */
+		default void recycle() {}
+
+		/**
+		 * @return cost of the workload towards a {@link RateLimit}
+		 */
+		default int cost() {
+			return 1;
 		}
 
-		public IntPreparedLoop breakIf(IntPredicate predicate) {
-			cancelationPredicate = predicate;
+		/**
+		 * @return the object that actually does the work, e.g the wrapped consumer,
+		 *         used to describe the workload in watchdog reports
+		 */
+		default Object source() {
 			return this;
 		}
 
-		public IntPreparedLoop alsoBreakIf(IntPredicate predicate) {
-			cancelationPredicate.and(predicate);
-			return this;
+	}
+
+	public static class LoopFuture<T> {
+
+		private CompletableFuture<T> completableFuture;
+		private int currentElementIndex;
+		private T currentElement;
+		private final LoopProgress progress = new LoopProgress();
+
+		public LoopFuture() {
+			completableFuture = new CompletableFuture<T>();
 		}
 
-		public IntPreparedLoop continueIf(IntPredicate predicate) {
-			continuationPredicate = predicate;
-			return this;
+		public static <T> LoopFuture<T> createCompleted() {
+			LoopFuture<T> loopFuture = new LoopFuture<>();
+			loopFuture.completableFuture.complete(null);
+			return loopFuture;
 		}
 
-		public IntPreparedLoop andContinueIf(IntPredicate predicate) {
-			continuationPredicate.and(predicate);
-			return this;
+		public static void setLoopFuture(LoopFuture<?> loopFuture, LoopFuture<?> loopFuture2) {
+			loopFuture = loopFuture2;
 		}
 
-		public IntPreparedLoop setSize(int newSize) {
-			size = newSize;
+		public static void forceComplete(LoopFuture<?> loopFuture) {
+			loopFuture.forceComplete();
+		}
+
+		/**
+		 * 
+		 * @return Completes the loop future with a null object
+		 */
+		public LoopFuture<T> forceComplete() {
+			completableFuture.complete(null);
 			return this;
 		}
 
 		/**
-		 * Forcefully breaks a loop by setting a break condition that always returns
-		 * true
+		 * @param t object to pass for completion
+		 * @return Completes the loop future with a specific object
 		 */
-		public void forceBreak() {
-			cancelationPredicate = i -> (i <= Integer.MAX_VALUE);
+		public LoopFuture<T> forceComplete(T t) {
+			completableFuture.complete(t);
+			return this;
 		}
 
-		public LoopFuture<Integer> forEach(IntConsumer action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-			workloadRunnable.start();
-			for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
-					size); currentIndex = intOperation.update()) {
-				if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
-				int index = currentIndex;
-				workloadRunnable.addWorkload(new IntWorkload(index, action));
-				loopFuture.currentElement = index;
-				loopFuture.currentElementIndex = index;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+		public CompletableFuture<Void> whenCompleteDoAsync(Runnable runnable) {
+			return completableFuture.thenRunAsync(runnable);
 		}
 
-		public LoopFuture<Integer> forEach(double maxMilliseconds, IntConsumer action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-			workloadRunnable.start();
-			for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
-					size); currentIndex = intOperation.update()) {
-				if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
-				if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
-				int index = currentIndex;
-				workloadRunnable.addWorkload(new IntWorkload(index, action));
-				loopFuture.currentElement = index;
-				loopFuture.currentElementIndex = index;
-			}
-			workloadRunnable.run(() -> {
-				loopFuture.completableFuture.complete(loopFuture.currentElement);
-				workloadRunnable.bukkitTask.cancel();
-				workloadRunnable.clearWorkloads();
-			});
-			return loopFuture;
+		public CompletableFuture<Void> whenCompleteDoSync(Runnable runnable) {
+			return completableFuture.thenRun(runnable);
 		}
 
-		/**
-		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
-		 * methods should be handled manually.
-		 * 
-		 * @param action action to perform
-		 * @return LoopFuture
-		 */
-		public LoopFuture<Integer> asyncForEach(IntConsumer action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-			workloadRunnable.startAsync();
-			Bukkit.getScheduler().runTaskAsynchronously(PLUGIN, () -> {
-				for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
-						size); currentIndex = intOperation.update()) {
-					if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
-					if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
-					int index = currentIndex;
-					workloadRunnable.addWorkload(new IntWorkload(index, action));
-					loopFuture.currentElement = index;
-					loopFuture.currentElementIndex = index;
-				}
-				workloadRunnable.run(() -> {
-					loopFuture.completableFuture.complete(loopFuture.currentElement);
-					workloadRunnable.bukkitTask.cancel();
-					workloadRunnable.clearWorkloads();
-				});
-			});
-			return loopFuture;
+		public CompletableFuture<Void> whenCompleteAcceptAsync(Consumer<T> consumer) {
+			return completableFuture.thenAcceptAsync(consumer);
 		}
 
-		/**
-		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
-		 * methods should be handled manually.
-		 * 
-		 * @param action          action to perform
-		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
-		 * @return LoopFuture
-		 */
-		public LoopFuture<Integer> asyncForEach(double maxMilliseconds, IntConsumer action) {
-			WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-			workloadRunnable.startAsync();
-			Bukkit.getScheduler().runTaskAsynchronously(PLUGIN, () -> {
-				for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
-						size); currentIndex = intOperation.update()) {
-					if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
-					if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
-					int index = currentIndex;
-					workloadRunnable.addWorkload(new IntWorkload(index, action));
-					loopFuture.currentElement = index;
-					loopFuture.currentElementIndex = index;
-				}
-				workloadRunnable.run(() -> {
-					loopFuture.completableFuture.complete(loopFuture.currentElement);
-					workloadRunnable.bukkitTask.cancel();
-					workloadRunnable.clearWorkloads();
-				});
-			});
-			return loopFuture;
+		public CompletableFuture<Void> whenCompleteAcceptSync(Consumer<T> consumer) {
+			return completableFuture.thenAccept(consumer);
 		}
 
-	}
-
-	public interface IntCondition {
+		public CompletableFuture<T> getCompletableFuture() {
+			return completableFuture;
+		}
 
 		/**
-		 * This equals i < size in a for loop
-		 * 
-		 * @return A condition of {@code i < size} the most used condition in for loops
+		 * Prepares the loop future for another run, a new completable future is only
+		 * created if the previous one has been completed.
 		 */
-		public static IntCondition lessThanInt() {
-			return new LessThanIntCondition();
+		private void reset() {
+			if (completableFuture.isDone()) completableFuture = new CompletableFuture<T>();
+			currentElementIndex = 0;
+			currentElement = null;
+			progress.reset();
 		}
 
 		/**
-		 * This equals i > size in a for loop
-		 * 
-		 * @return A condition of {@code i > size} the second most used condition in for
-		 *         loops
+		 * @return index of the last element that was queued, see
+		 *         {@linkplain #getProgress()} for how many were actually processed
 		 */
-		public static IntCondition moreThanInt() {
-			return new MoreThanIntCondition();
+		public int getCurrentIndex() {
+			return currentElementIndex;
+		}
+
+		private void fail(Throwable throwable) {
+			progress.finish();
+			completableFuture.completeExceptionally(throwable);
 		}
 
 		/**
-		 * This equals i != size in a for loop
-		 * 
-		 * @return A condition of {@code i != size} as if it's used in a for loop
+		 * @return execution progress of the loop, safe to read from any thread
 		 */
-		public static IntCondition notEqualInt() {
-			return new NotEqualIntCondition();
+		public LoopProgress getProgress() {
+			return progress;
 		}
 
 		/**
-		 * This equals i == size in a for loop
+		 * Calls the listener on the loop's thread while it runs, at most once per
+		 * tick, and once more when it completes.
 		 * 
-		 * @return A condition of {@code i == size} as if it's used in a for loop
+		 * @param everyItems  minimum processed elements between calls, 0 to ignore
+		 * @param everyMillis minimum milliseconds between calls, 0 to ignore
+		 * @param listener    listener to call with the loop's progress
+		 * @return this loop future
 		 */
-		public static IntCondition equalInt() {
-			return new EqualIntCondition();
+		public LoopFuture<T> onProgress(long everyItems, long everyMillis, Consumer<LoopProgress> listener) {
+			progress.setListener(everyItems, everyMillis, listener);
+			return this;
 		}
 
-		boolean isTrue(int currentIndex, int size);
-
-	}
-
-	private static class LessThanIntCondition implements IntCondition {
+		public T getCurrentElement() {
+			return currentElement;
+		}
 
 		@Override
-		public boolean isTrue(int currentIndex, int size) {
-			return currentIndex < size;
+		public String toString() {
+			return currentElement + ":" + currentElementIndex + ":" + completableFuture.toString();
 		}
 
 	}
 
-	private static class MoreThanIntCondition implements IntCondition {
-
-		@Override
-		public boolean isTrue(int currentIndex, int size) {
-			return currentIndex > size;
-		}
+	/**
+	 * Execution side progress of a loop. Counters are only written by the thread
+	 * running the loop, after each run of its workloads, and can be read lock-free from any thread.
+	 */
+	public static class LoopProgress {
 
-	}
+		private static final double SMOOTHING = 0.2;
 
-	private static class NotEqualIntCondition implements IntCondition {
+		private volatile long total = -1, done;
+		private volatile double itemsPerSecond;
+		private long lastRecordTime = Long.MIN_VALUE;
+		private Consumer<LoopProgress> listener;
+		private long everyItems, everyNanos, reportedDone, reportedTime;
 
-		@Override
-		public boolean isTrue(int currentIndex, int size) {
-			return currentIndex != size;
+		private void setListener(long everyItems, long everyMillis, Consumer<LoopProgress> listener) {
+			this.everyItems = everyItems;
+			this.everyNanos = everyMillis * 1_000_000L;
+			this.listener = listener;
 		}
 
-	}
-
-	private static class EqualIntCondition implements IntCondition {
+		private void reset() {
+			total = -1;
+			done = 0;
+			itemsPerSecond = 0;
+			lastRecordTime = Long.MIN_VALUE;
+			reportedDone = 0;
+		}
 
-		@Override
-		public boolean isTrue(int currentIndex, int size) {
-			return currentIndex == size;
+		private void setTotal(long total) {
+			this.total = total;
 		}
 
-	}
+		/**
+		 * @param items elements processed since the last record
+		 * @param now   current clock time
+		 */
+		private void record(long items, long now) {
+			long done = this.done + items;
+			this.done = done;
+			if (lastRecordTime != Long.MIN_VALUE && now > lastRecordTime) {
+				double instant = items * 1E9 / (now - lastRecordTime);
+				itemsPerSecond = itemsPerSecond == 0 ? instant : itemsPerSecond + SMOOTHING * (instant - itemsPerSecond);
+			} else {
+				reportedTime = now;
+			}
+			lastRecordTime = now;
+			if (listener != null && (everyItems <= 0 || done - reportedDone >= everyItems)
+					&& (everyNanos <= 0 || now - reportedTime >= everyNanos)) {
+				reportedDone = done;
+				reportedTime = now;
+				listener.accept(this);
+			}
+		}
 
-	public interface IntOperation {
+		private void finish() {
+			if (total >= 0) done = total;
+			if (listener != null) listener.accept(this);
+		}
 
 		/**
-		 * This equals i++ used in a for loop
-		 * 
-		 * @return Operation: i++
+		 * @return total amount of elements, or -1 if it isn't known (yet)
 		 */
-		public static IntOperation increaseInt() {
-			return new IncreaseIntOperation();
+		public long getTotal() {
+			return total;
+		}
+
+		public long getDone() {
+			long total = this.total, done = this.done;
+			return total >= 0 ? Math.min(done, total) : done;
 		}
 
 		/**
-		 * This equals i+(i) used in a for loop
-		 * 
-		 * @param i increase by (1 by default)
-		 * @return Operation: i+(i)
+		 * @return fraction of processed elements between 0 and 1, or -1 if the total
+		 *         isn't known
 		 */
-		public static IntOperation increaseInt(int i) {
-			IncreaseIntOperation operation = new IncreaseIntOperation();
-			operation.by = i;
-			return operation;
+		public double getFraction() {
+			long total = this.total;
+			if (total < 0) return -1;
+			return total == 0 ? 1 : (double) getDone() / total;
 		}
 
 		/**
-		 * This equals i-- used in a for loop
-		 * 
-		 * @return Operation: i--
+		 * @return processed elements per second, smoothed over recent ticks
 		 */
-		public static IntOperation decreaseInt() {
-			return new DecreaseIntOperation();
+		public double getItemsPerSecond() {
+			return itemsPerSecond;
 		}
 
 		/**
-		 * This equals i-(i) used in a for loop
-		 * 
-		 * @param i decrease by (1 by default)
-		 * @return Operation: i-(i)
+		 * @return estimated milliseconds until completion, or -1 if it can't be
+		 *         estimated
 		 */
-		public static IntOperation decreaseInt(int i) {
-			DecreaseIntOperation operation = new DecreaseIntOperation();
-			operation.by = i;
-			return operation;
+		public long getEtaMillis() {
+			long total = this.total;
+			double itemsPerSecond = this.itemsPerSecond;
+			if (total < 0 || itemsPerSecond <= 0) return -1;
+			return (long) ((total - getDone()) * 1000 / itemsPerSecond);
 		}
 
-		int get();
+		@Override
+		public String toString() {
+			return getDone() + "/" + total + " " + String.format("%.1f", itemsPerSecond) + "/s eta=" + getEtaMillis()
+					+ "ms";
+		}
 
-		int set(int i);
+	}
 
-		int update();
+	/**
+	 * Sorts elements as they're added in runs of {@value #RUN_SIZE}, then merges the
+	 * runs in a workload that outputs {@value #MERGE_CHUNK} elements per compute,
+	 * so no single workload sorts or merges the whole list.
+	 */
+	private static class IncrementalSort<T> implements Workload {
 
-	}
+		private static final int RUN_SIZE = 256, MERGE_CHUNK = 512;
 
-	private static class IncreaseIntOperation implements IntOperation {
+		private final Comparator<? super T> comparator;
+		private final List<T[]> runs = new ArrayList<>();
+		private T[] run;
+		private int runSize, total;
+		private int[] positions;
+		private PriorityQueue<Integer> heads;
+		private List<T> output;
+		private WorkloadRunnable workloadRunnable;
+		private CompletableFuture<List<T>> future;
 
-		int i = 0;
-		int by = 1;
+		private IncrementalSort(Comparator<? super T> comparator) {
+			this.comparator = comparator;
+		}
 
-		public IncreaseIntOperation() {
-			i = 0;
+		@SuppressWarnings("unchecked")
+		private void add(T element) {
+			if (run == null) run = (T[]) new Object[RUN_SIZE];
+			run[runSize++] = element;
+			total++;
+			if (runSize == RUN_SIZE) flush();
 		}
 
-		@Override
-		public int update() {
-			return i += by;
+		private void flush() {
+			if (runSize == 0) return;
+			T[] sortedRun = runSize == RUN_SIZE ? run : Arrays.copyOf(run, runSize);
+			Arrays.sort(sortedRun, comparator);
+			runs.add(sortedRun);
+			run = null;
+			runSize = 0;
 		}
 
-		@Override
-		public int get() {
-			return i;
+		private CompletableFuture<List<T>> merge() {
+			flush();
+			future = new CompletableFuture<>();
+			if (runs.size() <= 1) {
+				future.complete(runs.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(runs.get(0))));
+				return future;
+			}
+			output = new ArrayList<>(total);
+			positions = new int[runs.size()];
+			heads = new PriorityQueue<>(runs.size(),
+					(first, second) -> comparator.compare(runs.get(first)[positions[first]],
+							runs.get(second)[positions[second]]));
+			for (int i = 0; i < runs.size(); i++) heads.add(i);
+			workloadRunnable = new WorkloadRunnable();
+			workloadRunnable.setFailurePolicy(FailurePolicy.FAIL_LOOP, future::completeExceptionally);
+			workloadRunnable.addWorkload(this);
+			workloadRunnable.start();
+			return future;
 		}
 
 		@Override
-		public int set(int i) {
-			return this.i = i;
+		public boolean compute() {
+			for (int i = 0; i < MERGE_CHUNK && !heads.isEmpty(); i++) {
+				int index = heads.poll();
+				T[] head = runs.get(index);
+				output.add(head[positions[index]++]);
+				if (positions[index] < head.length) heads.add(index);
+			}
+			if (!heads.isEmpty()) {
+				workloadRunnable.addWorkloadFirst(this);
+				return true;
+			}
+			workloadRunnable.cancel();
+			runs.clear();
+			future.complete(output);
+			return true;
 		}
 
 	}
 
-	private static class DecreaseIntOperation implements IntOperation {
+	/**
+	 * A collection that records which of its elements are dirty, so recurring
+	 * loops can process only what changed since their previous pass instead of
+	 * the whole collection. Added elements are dirty, and elements that change
+	 * afterwards have to be marked with {@linkplain #markDirty(Object)}, which is
+	 * safe from any thread. Modifying the collection itself is as thread safe as
+	 * the wrapped collection. Elements can't be null.
+	 * <p>
+	 * Every mark is stamped with a version, and a delta loop only clears the marks
+	 * it processed once it completes, so elements marked again during the pass are
+	 * kept for the next one and a failed pass keeps all of them.
+	 */
+	public static class TrackedCollection<T> extends AbstractCollection<T> {
 
-		int i = 0;
-		int by = 1;
+		private final Collection<T> collection;
+		private final Map<T, Long> dirty = new ConcurrentHashMap<>();
+		private final AtomicLong versions = new AtomicLong();
 
-		public DecreaseIntOperation() {
-			i = 0;
+		private TrackedCollection(@Nonnull Collection<T> collection) {
+			if (collection == null)
+				throw new NullPointerException("TrackedCollection creation failure: collection is null!");
+			this.collection = collection;
+			for (T element : collection) markDirty(element);
+		}
+
+		/**
+		 * @param element element that changed and should be processed by the next
+		 *                delta loop
+		 */
+		public void markDirty(@Nonnull T element) {
+			dirty.put(element, versions.incrementAndGet());
+		}
+
+		/**
+		 * Marks every element, so the next delta loop is a full pass
+		 */
+		public void markAllDirty() {
+			for (T element : collection) markDirty(element);
+		}
+
+		public boolean isDirty(Object element) {
+			return dirty.containsKey(element);
+		}
+
+		public int getDirtyCount() {
+			return dirty.size();
+		}
+
+		/**
+		 * Takes a snapshot of the dirty elements and prepares a loop over them. An
+		 * element's mark is cleared right after its action ran, or once a lazy loop
+		 * pulled it, so elements left out by a break or a limit stay dirty, and so do
+		 * elements whose action threw. Elements marked again in the meantime keep
+		 * their new mark.
+		 * 
+		 * @return A PreparedLoop over the dirty elements
+		 */
+		public PreparedLoop<T> prepareDeltaLoop() {
+			Map<T, Long> snapshot = new HashMap<>(dirty);
+			PreparedLoop<T> preparedLoop = new PreparedLoop<T>(snapshot.keySet());
+			preparedLoop.visitor = element -> dirty.remove(element, snapshot.get(element));
+			return preparedLoop;
 		}
 
 		@Override
-		public int update() {
-			return i -= by;
+		public boolean add(@Nonnull T element) {
+			if (element == null) throw new NullPointerException("TrackedCollection addition failure: element is null!");
+			if (!collection.add(element)) return false;
+			markDirty(element);
+			return true;
 		}
 
 		@Override
-		public int get() {
-			return i;
+		public boolean remove(Object element) {
+			if (!collection.remove(element)) return false;
+			if (element != null && !containsDuplicate(element)) dirty.remove(element);
+			return true;
 		}
 
 		@Override
-		public int set(int i) {
-			return this.i = i;
+		public void clear() {
+			collection.clear();
+			dirty.clear();
 		}
 
-	}
+		/**
+		 * Lists can hold an element more than once, its mark is then kept
+		 */
+		private boolean containsDuplicate(Object element) {
+			return !(collection instanceof Set) && collection.contains(element);
+		}
 
-	/**
-	 * Runs the specified {@code runnable} in the main workload, which means that
-	 * any action that will be run, will wait for the previous actions that are also
-	 * run in the main workload to finish before execution.
-	 * 
-	 * @param runnable code to run () ->
-	 */
+		@Override
+		public boolean contains(Object element) {
+			return collection.contains(element);
+		}
+
+		@Override
+		public int size() {
+			return collection.size();
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			Iterator<T> iterator = collection.iterator();
+			return new Iterator<T>() {
+
+				private T last;
+
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public T next() {
+					return last = iterator.next();
+				}
+
+				@Override
+				public void remove() {
+					iterator.remove();
+					if (last != null && !containsDuplicate(last)) dirty.remove(last);
+				}
+
+			};
+		}
+
+	}
+
+	/**
+	 * Marks a consumer as safe to run off the main thread, so loops started with
+	 * {@code forEachPlaced} run it in parallel instead of spending the tick's
+	 * budget on it.
+	 * 
+	 * <pre>
+	 * prepareLoop(records).forEachPlaced((Consumer&lt;Record&gt; &amp; AsyncSafe) record -&gt; record.recalculate());
+	 * </pre>
+	 */
+	public interface AsyncSafe {}
+
+	/**
+	 * Runs the compute phase of a placed loop in chunks as async tasks of the
+	 * scheduler, and hands the results over to the loop's main thread runnable chunk
+	 * by chunk, in order, as the chunks complete.
+	 */
+	private static class Placement {
+
+		private static final int CHUNK_SIZE = 256;
+
+		@SuppressWarnings("unchecked")
+		private static <T, R> LoopFuture<T> place(AbstractPreparedLoop<T> loop, List<T> elements,
+				Function<? super T, ? extends R> compute, Consumer<? super R> apply, WorkloadRunnable workloadRunnable) {
+			LoopFuture<T> loopFuture = loop.loopFuture;
+			FailurePolicy failurePolicy = loop.failurePolicy;
+			int size = elements.size();
+			loopFuture.progress.setTotal(size);
+			AtomicBoolean logged = new AtomicBoolean();
+			workloadRunnable.start();
+			CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+			for (int from = 0; from < size; from += CHUNK_SIZE) {
+				List<T> chunk = elements.subList(from, Math.min(size, from + CHUNK_SIZE));
+				CompletableFuture<Object[]> computed = new CompletableFuture<>();
+				scheduler.runTaskAsynchronously(() -> {
+					Object[] results = new Object[chunk.size()];
+					for (int i = 0; i < results.length; i++) {
+						try {
+							results[i] = compute.apply(chunk.get(i));
+						} catch (Throwable e) {
+							if (failurePolicy.failLoop) {
+								computed.completeExceptionally(e);
+								return;
+							}
+							FAILURES.incrementAndGet();
+							if (logged.compareAndSet(false, true)) scheduler.getLogger().log(Level.WARNING,
+									"Compute phase of a placed loop failed, skipping the element (further failures are only counted)", e);
+						}
+					}
+					computed.complete(results);
+				});
+				chain = chain.thenCombine(computed, (ignored, results) -> {
+					workloadRunnable.post(new RunnableWorkload(() -> {
+						// without an apply phase nothing is computed by the runnable, so the
+						// progress is recorded per chunk here, still on the main thread
+						if (apply == null) {
+							for (T element : chunk) loop.visited(element);
+							loopFuture.progress.record(results.length, scheduler.nanoTime());
+							return;
+						}
+						for (int i = 0; i < results.length; i++) {
+							T element = chunk.get(i);
+							if (results[i] == null)
+								loop.visited(element);
+							else
+								workloadRunnable.addWorkload(
+										loop.weighed(new AppliedWorkload<T, R>(loop, element, (R) results[i], apply), element));
+						}
+					}));
+					return null;
+				});
+			}
+			T last = size == 0 ? null : elements.get(size - 1);
+			// posted after every chunk, so the completion is queued behind all results
+			chain.whenComplete((ignored, throwable) -> workloadRunnable.post(new RunnableWorkload(() -> {
+				if (throwable != null) {
+					workloadRunnable.cancel();
+					workloadRunnable.clearWorkloads();
+					loopFuture.fail(throwable instanceof CompletionException ? throwable.getCause() : throwable);
+					return;
+				}
+				workloadRunnable.run(() -> {
+					loopFuture.currentElement = last;
+					loopFuture.currentElementIndex = size;
+					loopFuture.progress.finish();
+					loopFuture.completableFuture.complete(last);
+					workloadRunnable.cancel();
+					workloadRunnable.clearWorkloads();
+				});
+			})));
+			return loopFuture;
+		}
+
+		/**
+		 * Applies the computed result of an element on the main thread
+		 */
+		private static class AppliedWorkload<T, R> implements Workload {
+
+			private final AbstractPreparedLoop<T> loop;
+			private final T element;
+			private final R result;
+			private final Consumer<? super R> apply;
+
+			private AppliedWorkload(AbstractPreparedLoop<T> loop, T element, R result, Consumer<? super R> apply) {
+				this.loop = loop;
+				this.element = element;
+				this.result = result;
+				this.apply = apply;
+			}
+
+			@Override
+			public boolean compute() {
+				apply.accept(result);
+				loop.visited(element);
+				return true;
+			}
+
+			@Override
+			public Object source() {
+				return apply;
+			}
+
+		}
+
+	}
+
+	public static abstract class AbstractPreparedLoop<T> {
+
+		private Object object;
+		protected LoopFuture<T> loopFuture;
+		protected RateLimit rateLimit;
+		protected FailurePolicy failurePolicy = FailurePolicy.SKIP;
+		protected long deadlineMillis;
+		protected ToIntFunction<? super T> weigher;
+
+		/**
+		 * Applies the loop's rate limit, progress, failure policy and deadline to a
+		 * runnable that is about to run the loop
+		 * 
+		 * @param workloadRunnable runnable to configure
+		 * @return the configured runnable
+		 */
+		protected WorkloadRunnable configure(WorkloadRunnable workloadRunnable) {
+			workloadRunnable.setRateLimit(rateLimit);
+			workloadRunnable.setProgress(loopFuture.progress);
+			workloadRunnable.setFailurePolicy(failurePolicy, loopFuture::fail);
+			workloadRunnable.setDeadline(deadlineMillis);
+			return workloadRunnable;
+		}
+
+		/**
+		 * @param workload workload of the element
+		 * @param element  element to weigh the workload by
+		 * @return the workload, weighted by the loop's weigher if it has one
+		 */
+		protected Workload weighed(Workload workload, T element) {
+			if (weigher == null) return workload;
+			return new WeightedWorkload(workload, weigher.applyAsInt(element));
+		}
+
+		/**
+		 * Called once the action of an element ran
+		 * 
+		 * @param element visited element
+		 */
+		protected void visited(T element) {}
+
+		/**
+		 * @return the elements the loop goes through, with its break and continue
+		 *         conditions applied
+		 */
+		protected abstract List<T> snapshot();
+
+		/**
+		 * Splits the loop into a thread safe compute phase and a main thread apply
+		 * phase. Elements are computed in parallel chunks off the main thread, and
+		 * only the results are applied in the time-sliced main runnable, in the
+		 * elements' order.
+		 * 
+		 * @param compute thread safe part of the work, a null result skips the apply
+		 *                phase for that element
+		 * @param apply   main thread only part of the work, applied to every result
+		 * @return LoopFuture completed once every result is applied
+		 */
+		public <R> LoopFuture<T> forEachPlaced(Function<? super T, ? extends R> compute, Consumer<? super R> apply) {
+			return Placement.place(this, snapshot(), compute, apply, configure(new WorkloadRunnable()));
+		}
+
+		/**
+		 * Runs the whole loop in parallel off the main thread if the action is marked
+		 * with {@link AsyncSafe}, like a regular {@linkplain #forEach(Consumer)}
+		 * otherwise.
+		 * 
+		 * @param action action to perform on loop element
+		 * @return LoopFuture
+		 */
+		public LoopFuture<T> forEachPlaced(Consumer<? super T> action) {
+			if (!(action instanceof AsyncSafe)) return forEach(action);
+			return forEachPlaced(element -> {
+				action.accept(element);
+				return null;
+			}, null);
+		}
+
+		/**
+		 * Start a for loop
+		 * 
+		 * @param action action to perform on loop element
+		 * @return LoopFuture
+		 */
+		public abstract LoopFuture<T> forEach(Consumer<? super T> action);
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @param action action to perform
+		 * @return LoopFuture
+		 */
+		public abstract LoopFuture<T> asyncForEach(Consumer<? super T> action);
+
+		/**
+		 * Start a for loop
+		 * 
+		 * @param action          action to perform on loop element
+		 * @param maxMilliseconds how many milliseconds a tick can last, increasing this
+		 *                        value will speed up the task inreturn of decreasing
+		 *                        the tps by a little
+		 * @return LoopFuture
+		 */
+		public abstract LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action);
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @param action          action to perform
+		 * @param maxMilliseconds how many milliseconds a tick can last, increasing this
+		 *                        value will speed up the task inreturn of decreasing
+		 *                        the tps by a little
+		 * @return LoopFuture
+		 */
+		public abstract LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action);
+
+		public abstract void forceBreak();
+
+		/**
+		 * Keeps the first {@code k} elements in the comparator's order while looping,
+		 * in a bounded heap, so only those k elements are sorted at completion. Useful
+		 * for leaderboards, e.g {@code topK(10, byBalance.reversed())}.
+		 * 
+		 * @param k          amount of elements to keep
+		 * @param comparator order of the elements, the smallest come first
+		 * @return future completed with at most k elements in the comparator's order
+		 */
+		public CompletableFuture<List<T>> topK(int k, Comparator<? super T> comparator) {
+			if (k < 1) throw new IllegalArgumentException("Top-K creation failure: k must be positive!");
+			// the heap's head is the worst element kept so far
+			PriorityQueue<T> heap = new PriorityQueue<>(Math.min(k, 1024) + 1, comparator.reversed());
+			return forEach(element -> {
+				if (heap.size() < k) {
+					heap.offer(element);
+				} else if (comparator.compare(element, heap.peek()) < 0) {
+					heap.poll();
+					heap.offer(element);
+				}
+			}).getCompletableFuture().thenApply(last -> {
+				List<T> list = new ArrayList<>(heap);
+				list.sort(comparator);
+				return list;
+			});
+		}
+
+		/**
+		 * Sorts the elements without a sorting spike at completion. Elements are
+		 * sorted in small runs while looping, and the runs are then merged a chunk per
+		 * workload across ticks.
+		 * 
+		 * @param comparator order of the elements
+		 * @return future completed with every element in the comparator's order
+		 */
+		public CompletableFuture<List<T>> sorted(Comparator<? super T> comparator) {
+			return sorted(comparator, false);
+		}
+
+		/**
+		 * @param comparator order of the elements
+		 * @param parallel   whether the elements are collected while looping and then
+		 *                   sorted in parallel off the main thread, in which case the
+		 *                   comparator has to be thread safe
+		 * @return future completed with every element in the comparator's order,
+		 *         outside of the main thread when parallel
+		 */
+		@SuppressWarnings("unchecked")
+		public CompletableFuture<List<T>> sorted(Comparator<? super T> comparator, boolean parallel) {
+			if (parallel) {
+				List<T> collected = new ArrayList<>();
+				CompletableFuture<List<T>> future = new CompletableFuture<>();
+				forEach(collected::add).getCompletableFuture().whenComplete((last, throwable) -> {
+					if (throwable != null) {
+						future.completeExceptionally(throwable);
+						return;
+					}
+					scheduler.runTaskAsynchronously(() -> {
+						T[] array = (T[]) collected.toArray();
+						Arrays.parallelSort(array, comparator);
+						future.complete(Arrays.asList(array));
+					});
+				});
+				return future;
+			}
+			IncrementalSort<T> incrementalSort = new IncrementalSort<>(comparator);
+			return forEach(incrementalSort::add).getCompletableFuture().thenCompose(last -> incrementalSort.merge());
+		}
+
+		/**
+		 * Schedules a separate bukkit task for the runnable. When called for every
+		 * element of an async loop, prefer {@link #post(Runnable)}.
+		 * 
+		 * @param runnable code to run on the main thread
+		 * @return the scheduled bukkit task
+		 */
+		public BukkitTask sync(Runnable runnable) {
+			return Bukkit.getScheduler().runTask(PluginHolder.PLUGIN, runnable);
+		}
+
+		/**
+		 * Posts the runnable to the main workload mailbox, it's safe to call from any
+		 * thread and doesn't schedule a bukkit task per call. Posted runnables are
+		 * drained by the main workload within its time budget.
+		 * 
+		 * @param runnable code to run on the main thread
+		 */
+		public void post(Runnable runnable) {
+			BukkitWorker.post(runnable);
+		}
+
+		public BukkitTask async(Runnable runnable) {
+			return Bukkit.getScheduler().runTaskAsynchronously(PluginHolder.PLUGIN, runnable);
+		}
+
+		public void storeObject(Object object) {
+			this.object = object;
+		}
+
+		public Object getObject() {
+			return object;
+		}
+
+	}
+
+	public static class PreparedLoop<T> extends AbstractPreparedLoop<T> {
+
+		private Iterable<T> iterable;
+		private Predicate<T> cancelationPredicate;
+		private Predicate<T> continuationPredicate;
+		/**
+		 * Called with every element once its action ran, or once a lazy loop pulled
+		 * it, used by delta loops to clear the marks of visited elements only
+		 */
+		private Consumer<? super T> visitor;
+
+		public PreparedLoop(@Nonnull Iterable<T> iterable) {
+			this.iterable = iterable;
+			if (iterable == null)
+				throw new NullPointerException("PreparedLoop creation failure: iterable or collection is null!");
+			else
+				loopFuture = new LoopFuture<T>();
+		}
+
+		/**
+		 * Forcefully breaks a loop by setting a break condition that always returns
+		 * true
+		 * 
+		 * @param preparedLoop prepared loop to break
+		 */
+		public static void forceBreak(PreparedLoop<?> preparedLoop) {
+			preparedLoop.cancelationPredicate = o -> (o == null || o instanceof Object);
+		}
+
+		public PreparedLoop<T> breakIf(Predicate<T> predicate) {
+			cancelationPredicate = predicate;
+			return this;
+		}
+
+		public PreparedLoop<T> alsoBreakIf(Predicate<T> predicate) {
+			cancelationPredicate.and(predicate);
+			return this;
+		}
+
+		public PreparedLoop<T> continueIf(Predicate<T> predicate) {
+			continuationPredicate = predicate;
+			return this;
+		}
+
+		public PreparedLoop<T> alsoContinueIf(Predicate<T> predicate) {
+			continuationPredicate.and(predicate);
+			return this;
+		}
+
+		/**
+		 * @param rateLimit limits how many elements are processed per tick or second,
+		 *                  on top of the time budget
+		 * @return this loop
+		 */
+		public PreparedLoop<T> rateLimit(RateLimit rateLimit) {
+			this.rateLimit = rateLimit;
+			return this;
+		}
+
+		/**
+		 * @param failurePolicy what happens when the action throws for an element,
+		 *                      {@linkplain FailurePolicy#SKIP} by default
+		 * @return this loop
+		 */
+		public PreparedLoop<T> onFailure(FailurePolicy failurePolicy) {
+			this.failurePolicy = failurePolicy;
+			return this;
+		}
+
+		/**
+		 * @param deadlineMillis milliseconds from the loop's start it should be done
+		 *                       in, see {@linkplain WorkloadRunnable#setDeadline(long)}
+		 * @return this loop
+		 */
+		public PreparedLoop<T> deadline(long deadlineMillis) {
+			this.deadlineMillis = deadlineMillis;
+			return this;
+		}
+
+		/**
+		 * @param weigher cost of each element towards the rate limit, 1 by default
+		 * @return this loop
+		 */
+		public PreparedLoop<T> weigh(ToIntFunction<? super T> weigher) {
+			this.weigher = weigher;
+			return this;
+		}
+
+		private Workload newWorkload(T element, Consumer<? super T> action) {
+			if (visitor != null) {
+				Consumer<? super T> visited = action;
+				action = value -> {
+					visited.accept(value);
+					visitor.accept(value);
+				};
+			}
+			return weighed(new ConsumerWorkload<T>(element, action), element);
+		}
+
+		@Override
+		protected void visited(T element) {
+			if (visitor != null) visitor.accept(element);
+		}
+
+		/**
+		 * @return iterable whose elements are passed to the visitor as they're pulled
+		 */
+		private static <T> Iterable<T> visiting(Iterable<T> iterable, Consumer<? super T> visitor) {
+			return () -> {
+				Iterator<T> iterator = iterable.iterator();
+				return new Iterator<T>() {
+
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public T next() {
+						T element = iterator.next();
+						visitor.accept(element);
+						return element;
+					}
+
+				};
+			};
+		}
+
+		/**
+		 * Turns this loop into a lazy loop, the break and continue conditions set so
+		 * far become its first operations.
+		 * 
+		 * @return LazyLoop that evaluates its operations inside the workload
+		 */
+		public LazyLoop<T> lazy() {
+			LazyLoop<T> lazyLoop = new LazyLoop<T>(visitor == null ? iterable : visiting(iterable, visitor));
+			if (continuationPredicate != null) lazyLoop.continueIf(continuationPredicate);
+			if (cancelationPredicate != null) lazyLoop.breakIf(cancelationPredicate);
+			return lazyLoop;
+		}
+
+		/**
+		 * @see LazyLoop#filter(Predicate)
+		 */
+		public LazyLoop<T> filter(Predicate<? super T> predicate) {
+			return lazy().filter(predicate);
+		}
+
+		/**
+		 * @see LazyLoop#map(Function)
+		 */
+		public <R> LazyLoop<R> map(Function<? super T, ? extends R> mapper) {
+			return lazy().map(mapper);
+		}
+
+		/**
+		 * @see LazyLoop#flatMap(Function)
+		 */
+		public <R> LazyLoop<R> flatMap(Function<? super T, ? extends Iterable<? extends R>> mapper) {
+			return lazy().flatMap(mapper);
+		}
+
+		/**
+		 * @see LazyLoop#limit(long)
+		 */
+		public LazyLoop<T> limit(long maxSize) {
+			return lazy().limit(maxSize);
+		}
+
+		/**
+		 * Forcefully breaks a loop by setting a break condition that always returns
+		 * true
+		 */
+		@Override
+		public void forceBreak() {
+			cancelationPredicate = o -> (o == null || o instanceof Object);
+		}
+
+		@Override
+		protected List<T> snapshot() {
+			List<T> elements = new ArrayList<>();
+			for (T element : iterable) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				elements.add(element);
+			}
+			return elements;
+		}
+
+		@Override
+		public LoopFuture<T> forEach(Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable());
+			workloadRunnable.start();
+			for (T element : iterable) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			return loopFuture;
+		}
+
+		@Override
+		public LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable(maxMilliseconds));
+			workloadRunnable.start();
+			for (T element : iterable) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			return loopFuture;
+		}
+
+		@Override
+		public String toString() {
+			return iterable.toString() + " " + loopFuture.toString();
+		}
+
+		@Override
+		public LoopFuture<T> asyncForEach(Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable());
+			for (T element : iterable) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			// started once filled, the deque isn't safe to fill while another thread drains it
+			workloadRunnable.startAsync();
+			return loopFuture;
+		}
+
+		@Override
+		public LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable(maxMilliseconds));
+			for (T element : iterable) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			workloadRunnable.startAsync();
+			return loopFuture;
+		}
+
+	}
+
+	public static class ArrayPreparedLoop<T> extends AbstractPreparedLoop<T> {
+
+		private T[] array;
+		private Predicate<T> cancelationPredicate;
+		private Predicate<T> continuationPredicate;
+
+		public ArrayPreparedLoop(@Nonnull T[] array) {
+			this.array = array;
+			if (array == null)
+				throw new NullPointerException("PreparedLoop creation failure: array is null!");
+			else
+				loopFuture = new LoopFuture<T>();
+		}
+
+		/**
+		 * Forcefully breaks a loop by setting a break condition that always returns
+		 * true
+		 * 
+		 * @param preparedLoop prepared loop to break
+		 */
+		public static void forceBreak(ArrayPreparedLoop<?> preparedLoop) {
+			preparedLoop.cancelationPredicate = o -> (o == null || o instanceof Object);
+		}
+
+		public ArrayPreparedLoop<T> breakIf(Predicate<T> predicate) {
+			cancelationPredicate = predicate;
+			return this;
+		}
+
+		public ArrayPreparedLoop<T> alsoBreakIf(Predicate<T> predicate) {
+			cancelationPredicate.and(predicate);
+			return this;
+		}
+
+		public ArrayPreparedLoop<T> continueIf(Predicate<T> predicate) {
+			continuationPredicate = predicate;
+			return this;
+		}
+
+		public ArrayPreparedLoop<T> alsoContinueIf(Predicate<T> predicate) {
+			continuationPredicate.and(predicate);
+			return this;
+		}
+
+		/**
+		 * @param rateLimit limits how many elements are processed per tick or second,
+		 *                  on top of the time budget
+		 * @return this loop
+		 */
+		public ArrayPreparedLoop<T> rateLimit(RateLimit rateLimit) {
+			this.rateLimit = rateLimit;
+			return this;
+		}
+
+		/**
+		 * @param failurePolicy what happens when the action throws for an element,
+		 *                      {@linkplain FailurePolicy#SKIP} by default
+		 * @return this loop
+		 */
+		public ArrayPreparedLoop<T> onFailure(FailurePolicy failurePolicy) {
+			this.failurePolicy = failurePolicy;
+			return this;
+		}
+
+		/**
+		 * @param deadlineMillis milliseconds from the loop's start it should be done
+		 *                       in, see {@linkplain WorkloadRunnable#setDeadline(long)}
+		 * @return this loop
+		 */
+		public ArrayPreparedLoop<T> deadline(long deadlineMillis) {
+			this.deadlineMillis = deadlineMillis;
+			return this;
+		}
+
+		/**
+		 * @param weigher cost of each element towards the rate limit, 1 by default
+		 * @return this loop
+		 */
+		public ArrayPreparedLoop<T> weigh(ToIntFunction<? super T> weigher) {
+			this.weigher = weigher;
+			return this;
+		}
+
+		private Workload newWorkload(T element, Consumer<? super T> action) {
+			return weighed(new ConsumerWorkload<T>(element, action), element);
+		}
+
+		/**
+		 * Turns this loop into a lazy loop, the break and continue conditions set so
+		 * far become its first operations.
+		 * 
+		 * @return LazyLoop that evaluates its operations inside the workload
+		 */
+		public LazyLoop<T> lazy() {
+			LazyLoop<T> lazyLoop = new LazyLoop<T>(Arrays.asList(array));
+			if (continuationPredicate != null) lazyLoop.continueIf(continuationPredicate);
+			if (cancelationPredicate != null) lazyLoop.breakIf(cancelationPredicate);
+			return lazyLoop;
+		}
+
+		/**
+		 * @see LazyLoop#filter(Predicate)
+		 */
+		public LazyLoop<T> filter(Predicate<? super T> predicate) {
+			return lazy().filter(predicate);
+		}
+
+		/**
+		 * @see LazyLoop#map(Function)
+		 */
+		public <R> LazyLoop<R> map(Function<? super T, ? extends R> mapper) {
+			return lazy().map(mapper);
+		}
+
+		/**
+		 * @see LazyLoop#flatMap(Function)
+		 */
+		public <R> LazyLoop<R> flatMap(Function<? super T, ? extends Iterable<? extends R>> mapper) {
+			return lazy().flatMap(mapper);
+		}
+
+		/**
+		 * @see LazyLoop#limit(long)
+		 */
+		public LazyLoop<T> limit(long maxSize) {
+			return lazy().limit(maxSize);
+		}
+
+		/**
+		 * Forcefully breaks a loop by setting a break condition that always returns
+		 * true
+		 */
+		@Override
+		public void forceBreak() {
+			cancelationPredicate = o -> (o == null || o instanceof Object);
+		}
+
+		@Override
+		protected List<T> snapshot() {
+			List<T> elements = new ArrayList<>();
+			for (T element : array) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				elements.add(element);
+			}
+			return elements;
+		}
+
+		@Override
+		public LoopFuture<T> forEach(Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable());
+			workloadRunnable.start();
+			for (T element : array) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			return loopFuture;
+		}
+
+		@Override
+		public LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable(maxMilliseconds));
+			workloadRunnable.start();
+			for (T element : array) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			return loopFuture;
+		}
+
+		@Override
+		public LoopFuture<T> asyncForEach(Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable());
+			for (T element : array) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			workloadRunnable.startAsync();
+			return loopFuture;
+		}
+
+		@Override
+		public LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable(maxMilliseconds));
+			for (T element : array) {
+				if (continuationPredicate != null) if (continuationPredicate.test(element)) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(element)) break;
+				workloadRunnable.addWorkload(newWorkload(element, action));
+				loopFuture.currentElement = element;
+				loopFuture.currentElementIndex++;
+			}
+			loopFuture.progress.setTotal(loopFuture.currentElementIndex);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			workloadRunnable.startAsync();
+			return loopFuture;
+		}
+
+		@Override
+		public String toString() {
+			return array.toString() + " " + loopFuture.toString();
+		}
+
+	}
+
+	public static class IntPreparedLoop {
+
+		private int size, currentIndex;
+		private IntCondition intCondition;
+		private IntOperation intOperation;
+		private LoopFuture<Integer> loopFuture;
+		private IntPredicate cancelationPredicate;
+		private IntPredicate continuationPredicate;
+		private RateLimit rateLimit;
+		private FailurePolicy failurePolicy = FailurePolicy.SKIP;
+		private long deadlineMillis;
+		private IntUnaryOperator weigher;
+
+		public IntPreparedLoop(int startIndex, IntCondition intCondition, IntOperation intOperation, int size) {
+			this.size = size;
+			this.intCondition = intCondition;
+			this.intOperation = intOperation;
+			this.intOperation.set(startIndex);
+			loopFuture = new LoopFuture<Integer>();
+		}
+
+		/**
+		 * Applies the loop's rate limit, progress, failure policy and deadline to a
+		 * runnable that is about to run the loop
+		 */
+		private WorkloadRunnable configure(WorkloadRunnable workloadRunnable) {
+			workloadRunnable.setRateLimit(rateLimit);
+			workloadRunnable.setProgress(loopFuture.progress);
+			workloadRunnable.setFailurePolicy(failurePolicy, loopFuture::fail);
+			workloadRunnable.setDeadline(deadlineMillis);
+			return workloadRunnable;
+		}
+
+		/**
+		 * Forcefully breaks a loop by setting a break condition that always returns
+		 * true
+		 * 
+		 * @param intPreparedLoop prepared loop to break
+		 */
+		public static void forceBreak(IntPreparedLoop intPreparedLoop) {
+			intPreparedLoop.cancelationPredicate = i -> (i <= Integer.MAX_VALUE);
+		}
+
+		public IntPreparedLoop breakIf(IntPredicate predicate) {
+			cancelationPredicate = predicate;
+			return this;
+		}
+
+		public IntPreparedLoop alsoBreakIf(IntPredicate predicate) {
+			cancelationPredicate.and(predicate);
+			return this;
+		}
+
+		public IntPreparedLoop continueIf(IntPredicate predicate) {
+			continuationPredicate = predicate;
+			return this;
+		}
+
+		public IntPreparedLoop andContinueIf(IntPredicate predicate) {
+			continuationPredicate.and(predicate);
+			return this;
+		}
+
+		/**
+		 * @param rateLimit limits how many elements are processed per tick or second,
+		 *                  on top of the time budget
+		 * @return this loop
+		 */
+		public IntPreparedLoop rateLimit(RateLimit rateLimit) {
+			this.rateLimit = rateLimit;
+			return this;
+		}
+
+		/**
+		 * @param failurePolicy what happens when the action throws for an element,
+		 *                      {@linkplain FailurePolicy#SKIP} by default
+		 * @return this loop
+		 */
+		public IntPreparedLoop onFailure(FailurePolicy failurePolicy) {
+			this.failurePolicy = failurePolicy;
+			return this;
+		}
+
+		/**
+		 * @param deadlineMillis milliseconds from the loop's start it should be done
+		 *                       in, see {@linkplain WorkloadRunnable#setDeadline(long)}
+		 * @return this loop
+		 */
+		public IntPreparedLoop deadline(long deadlineMillis) {
+			this.deadlineMillis = deadlineMillis;
+			return this;
+		}
+
+		/**
+		 * @param weigher cost of each element towards the rate limit, 1 by default
+		 * @return this loop
+		 */
+		public IntPreparedLoop weigh(IntUnaryOperator weigher) {
+			this.weigher = weigher;
+			return this;
+		}
+
+		private Workload newWorkload(int index, IntConsumer action) {
+			if (weigher == null) return new IntWorkload(index, action);
+			return new WeightedWorkload(new IntWorkload(index, action), weigher.applyAsInt(index));
+		}
+
+		public IntPreparedLoop setSize(int newSize) {
+			size = newSize;
+			return this;
+		}
+
+		/**
+		 * Forcefully breaks a loop by setting a break condition that always returns
+		 * true
+		 */
+		public void forceBreak() {
+			cancelationPredicate = i -> (i <= Integer.MAX_VALUE);
+		}
+
+		public LoopFuture<Integer> forEach(IntConsumer action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable());
+			workloadRunnable.start();
+			int queued = 0;
+			for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
+					size); currentIndex = intOperation.update()) {
+				if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
+				int index = currentIndex;
+				workloadRunnable.addWorkload(newWorkload(index, action));
+				queued++;
+				loopFuture.currentElement = index;
+				loopFuture.currentElementIndex = index;
+			}
+			loopFuture.progress.setTotal(queued);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			return loopFuture;
+		}
+
+		public LoopFuture<Integer> forEach(double maxMilliseconds, IntConsumer action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable(maxMilliseconds));
+			workloadRunnable.start();
+			int queued = 0;
+			for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
+					size); currentIndex = intOperation.update()) {
+				if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
+				if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
+				int index = currentIndex;
+				workloadRunnable.addWorkload(newWorkload(index, action));
+				queued++;
+				loopFuture.currentElement = index;
+				loopFuture.currentElementIndex = index;
+			}
+			loopFuture.progress.setTotal(queued);
+			workloadRunnable.run(() -> {
+				loopFuture.progress.finish();
+				loopFuture.completableFuture.complete(loopFuture.currentElement);
+				workloadRunnable.cancel();
+				workloadRunnable.clearWorkloads();
+			});
+			return loopFuture;
+		}
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @param action action to perform
+		 * @return LoopFuture
+		 */
+		public LoopFuture<Integer> asyncForEach(IntConsumer action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable());
+			scheduler.runTaskAsynchronously(() -> {
+				int queued = 0;
+				for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
+						size); currentIndex = intOperation.update()) {
+					if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
+					if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
+					int index = currentIndex;
+					workloadRunnable.addWorkload(newWorkload(index, action));
+					queued++;
+					loopFuture.currentElement = index;
+					loopFuture.currentElementIndex = index;
+				}
+				loopFuture.progress.setTotal(queued);
+				workloadRunnable.run(() -> {
+					loopFuture.progress.finish();
+					loopFuture.completableFuture.complete(loopFuture.currentElement);
+					workloadRunnable.cancel();
+					workloadRunnable.clearWorkloads();
+				});
+				workloadRunnable.startAsync();
+			});
+			return loopFuture;
+		}
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @param action          action to perform
+		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+		 * @return LoopFuture
+		 */
+		public LoopFuture<Integer> asyncForEach(double maxMilliseconds, IntConsumer action) {
+			WorkloadRunnable workloadRunnable = configure(new WorkloadRunnable(maxMilliseconds));
+			scheduler.runTaskAsynchronously(() -> {
+				int queued = 0;
+				for (currentIndex = intOperation.get(); intCondition.isTrue(currentIndex,
+						size); currentIndex = intOperation.update()) {
+					if (continuationPredicate != null) if (continuationPredicate.test(intOperation.get())) continue;
+					if (cancelationPredicate != null) if (cancelationPredicate.test(intOperation.get())) break;
+					int index = currentIndex;
+					workloadRunnable.addWorkload(newWorkload(index, action));
+					queued++;
+					loopFuture.currentElement = index;
+					loopFuture.currentElementIndex = index;
+				}
+				loopFuture.progress.setTotal(queued);
+				workloadRunnable.run(() -> {
+					loopFuture.progress.finish();
+					loopFuture.completableFuture.complete(loopFuture.currentElement);
+					workloadRunnable.cancel();
+					workloadRunnable.clearWorkloads();
+				});
+				workloadRunnable.startAsync();
+			});
+			return loopFuture;
+		}
+
+	}
+
+	/**
+	 * A loop that can be run again and again without being prepared each time.
+	 * <p>
+	 * Instead of adding a workload per element, a single cursor workload walks
+	 * through the elements one by one, and the same workload runnable and loop
+	 * future are reused for every run, so recurring loops allocate close to
+	 * nothing.
+	 */
+	public static abstract class AbstractLoopTemplate<T> {
+
+		private final WorkloadRunnable workloadRunnable;
+		private final LoopFuture<T> loopFuture;
+		private final Workload cursor;
+		private volatile boolean running;
+
+		protected AbstractLoopTemplate(WorkloadRunnable workloadRunnable) {
+			this.workloadRunnable = workloadRunnable;
+			this.loopFuture = new LoopFuture<T>();
+			this.cursor = this::advance;
+			workloadRunnable.setProgress(loopFuture.progress);
+			workloadRunnable.setFailurePolicy(FailurePolicy.SKIP, this::fail);
+		}
+
+		/**
+		 * @param failurePolicy what happens when the action throws for an element,
+		 *                      {@linkplain FailurePolicy#SKIP} by default. Retries
+		 *                      aren't supported since the cursor can't go back to
+		 *                      the failed element.
+		 */
+		public void setFailurePolicy(FailurePolicy failurePolicy) {
+			workloadRunnable.setFailurePolicy(failurePolicy.withoutRetries(), this::fail);
+		}
+
+		private void fail(Throwable throwable) {
+			running = false;
+			loopFuture.fail(throwable);
+		}
+
+		/**
+		 * @return amount of elements of the current run, or -1 if it isn't known
+		 */
+		protected long totalHint() {
+			return -1;
+		}
+
+		/**
+		 * Moves the cursor back to the first element
+		 */
+		protected abstract void rewind();
+
+		/**
+		 * Performs the action on the next element
+		 * 
+		 * @param loopFuture loop future to update with the processed element
+		 * @return true if an element was processed, false if there are no elements
+		 *         left
+		 */
+		protected abstract boolean step(LoopFuture<T> loopFuture);
+
+		/**
+		 * Starts a new run, does nothing if the previous run hasn't finished yet.
+		 * 
+		 * @return LoopFuture of the current run
+		 */
+		public LoopFuture<T> run() {
+			return run(false);
+		}
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @return LoopFuture of the current run
+		 */
+		public LoopFuture<T> runAsync() {
+			return run(true);
+		}
+
+		/**
+		 * Starts a new run in idle time mode, see
+		 * {@linkplain WorkloadRunnable#startIdle()}.
+		 * 
+		 * @return LoopFuture of the current run
+		 */
+		public LoopFuture<T> runIdle() {
+			if (prepareRun()) workloadRunnable.startIdle();
+			return loopFuture;
+		}
+
+		private LoopFuture<T> run(boolean bukkitAsync) {
+			if (!prepareRun()) return loopFuture;
+			if (bukkitAsync)
+				workloadRunnable.startAsync();
+			else
+				workloadRunnable.start();
+			return loopFuture;
+		}
+
+		private boolean prepareRun() {
+			if (running) return false;
+			running = true;
+			loopFuture.reset();
+			rewind();
+			loopFuture.progress.setTotal(totalHint());
+			workloadRunnable.addWorkload(cursor);
+			return true;
+		}
+
+		/**
+		 * Stops the current run, the loop future is completed with the last processed
+		 * element.
+		 */
+		public void cancel() {
+			if (!running) return;
+			running = false;
+			workloadRunnable.clearWorkloads();
+			workloadRunnable.cancel();
+			loopFuture.completableFuture.complete(loopFuture.currentElement);
+		}
+
+		public boolean isRunning() {
+			return running;
+		}
+
+		public LoopFuture<T> getLoopFuture() {
+			return loopFuture;
+		}
+
+		/**
+		 * @param owner owner whose quota limits this template's runs
+		 * @return this template
+		 */
+		public AbstractLoopTemplate<T> setOwner(WorkloadOwner owner) {
+			workloadRunnable.setOwner(owner);
+			return this;
+		}
+
+		private boolean advance() {
+			if (!running) return true;
+			boolean stepped;
+			try {
+				stepped = step(loopFuture);
+			} catch (Throwable e) {
+				// keeps the cursor going unless the failure policy clears the workloads
+				workloadRunnable.addWorkloadFirst(cursor);
+				throw e;
+			}
+			if (stepped) {
+				workloadRunnable.addWorkloadFirst(cursor);
+				return true;
+			}
+			running = false;
+			workloadRunnable.cancel();
+			loopFuture.progress.finish();
+			loopFuture.completableFuture.complete(loopFuture.currentElement);
+			return true;
+		}
+
+	}
+
+	public static class LoopTemplate<T> extends AbstractLoopTemplate<T> {
+
+		private final Supplier<? extends Iterable<T>> source;
+		private final Consumer<? super T> action;
+		private Iterator<T> iterator;
+		private long total;
+
+		public LoopTemplate(WorkloadRunnable workloadRunnable, @Nonnull Supplier<? extends Iterable<T>> source,
+				Consumer<? super T> action) {
+			super(workloadRunnable);
+			if (source == null) throw new NullPointerException("LoopTemplate creation failure: source is null!");
+			this.source = source;
+			this.action = action;
+		}
+
+		@Override
+		protected void rewind() {
+			Iterable<T> iterable = source.get();
+			total = iterable instanceof Collection ? ((Collection<T>) iterable).size() : -1;
+			iterator = iterable.iterator();
+		}
+
+		@Override
+		protected long totalHint() {
+			return total;
+		}
+
+		@Override
+		protected boolean step(LoopFuture<T> loopFuture) {
+			if (!iterator.hasNext()) {
+				iterator = null;
+				return false;
+			}
+			T element = iterator.next();
+			action.accept(element);
+			loopFuture.currentElement = element;
+			loopFuture.currentElementIndex++;
+			return true;
+		}
+
+	}
+
+	public static class IntLoopTemplate extends AbstractLoopTemplate<Integer> {
+
+		private final int startIndex;
+		private final IntSupplier size;
+		private final IntCondition intCondition;
+		private final IntOperation intOperation;
+		private final IntConsumer action;
+		private int currentSize;
+
+		public IntLoopTemplate(WorkloadRunnable workloadRunnable, int startIndex, IntSupplier size,
+				IntCondition intCondition, IntOperation intOperation, IntConsumer action) {
+			super(workloadRunnable);
+			this.startIndex = startIndex;
+			this.size = size;
+			this.intCondition = intCondition;
+			this.intOperation = intOperation;
+			this.action = action;
+		}
+
+		@Override
+		protected void rewind() {
+			intOperation.set(startIndex);
+			currentSize = size.getAsInt();
+		}
+
+		@Override
+		protected boolean step(LoopFuture<Integer> loopFuture) {
+			int index = intOperation.get();
+			if (!intCondition.isTrue(index, currentSize)) return false;
+			action.accept(index);
+			loopFuture.currentElement = index;
+			loopFuture.currentElementIndex = index;
+			intOperation.update();
+			return true;
+		}
+
+	}
+
+	/**
+	 * A loop whose operations are fused into a single pass and evaluated lazily,
+	 * one source element at a time, inside the time-sliced workload. No
+	 * intermediate collections are created, and the source stops being read as
+	 * soon as a {@linkplain #limit(long)} or {@linkplain #breakIf(Predicate)} is
+	 * reached.
+	 * <p>
+	 * {@code prepareLoop(list).filter(..).map(..).limit(10).forEach(..)}
+	 */
+	public static class LazyLoop<T> {
+
+		private final Iterable<?> source;
+		private final List<Stage> stages = new ArrayList<>();
+
+		public LazyLoop(@Nonnull Iterable<?> source) {
+			if (source == null) throw new NullPointerException("LazyLoop creation failure: source is null!");
+			this.source = source;
+		}
+
+		/**
+		 * @param predicate elements that don't match are skipped
+		 * @return this loop
+		 */
+		@SuppressWarnings("unchecked")
+		public LazyLoop<T> filter(Predicate<? super T> predicate) {
+			stages.add((downstream, state) -> element -> {
+				if (predicate.test((T) element)) downstream.accept(element);
+			});
+			return this;
+		}
+
+		/**
+		 * @param predicate elements that match are skipped
+		 * @return this loop
+		 */
+		public LazyLoop<T> continueIf(Predicate<? super T> predicate) {
+			return filter(predicate.negate());
+		}
+
+		/**
+		 * @param predicate the loop stops at the first element that matches
+		 * @return this loop
+		 */
+		@SuppressWarnings("unchecked")
+		public LazyLoop<T> breakIf(Predicate<? super T> predicate) {
+			stages.add((downstream, state) -> element -> {
+				if (predicate.test((T) element))
+					state.stopped = true;
+				else
+					downstream.accept(element);
+			});
+			return this;
+		}
+
+		/**
+		 * @param <R>    type of mapped elements
+		 * @param mapper maps each element
+		 * @return this loop, with mapped elements
+		 */
+		@SuppressWarnings("unchecked")
+		public <R> LazyLoop<R> map(Function<? super T, ? extends R> mapper) {
+			stages.add((downstream, state) -> element -> downstream.accept(mapper.apply((T) element)));
+			return (LazyLoop<R>) this;
+		}
+
+		/**
+		 * @param <R>    type of mapped elements
+		 * @param mapper maps each element to any number of elements
+		 * @return this loop, with mapped elements
+		 */
+		@SuppressWarnings("unchecked")
+		public <R> LazyLoop<R> flatMap(Function<? super T, ? extends Iterable<? extends R>> mapper) {
+			stages.add((downstream, state) -> element -> {
+				Iterable<? extends R> mapped = mapper.apply((T) element);
+				if (mapped == null) return;
+				for (R mappedElement : mapped) {
+					if (state.stopped) return;
+					downstream.accept(mappedElement);
+				}
+			});
+			return (LazyLoop<R>) this;
+		}
+
+		/**
+		 * @param action action to perform on each element passing through
+		 * @return this loop
+		 */
+		@SuppressWarnings("unchecked")
+		public LazyLoop<T> peek(Consumer<? super T> action) {
+			stages.add((downstream, state) -> element -> {
+				action.accept((T) element);
+				downstream.accept(element);
+			});
+			return this;
+		}
+
+		/**
+		 * @param maxSize maximum amount of elements to reach the loop action
+		 * @return this loop
+		 */
+		public LazyLoop<T> limit(long maxSize) {
+			if (maxSize < 0) throw new IllegalArgumentException("LazyLoop limit failure: " + maxSize + " < 0");
+			stages.add((downstream, state) -> {
+				if (maxSize == 0) state.stopped = true;
+				long[] count = new long[1];
+				return element -> {
+					downstream.accept(element);
+					if (++count[0] >= maxSize) state.stopped = true;
+				};
+			});
+			return this;
+		}
+
+		/**
+		 * Start a for loop
+		 * 
+		 * @param action action to perform on loop element
+		 * @return LoopFuture
+		 */
+		public LoopFuture<T> forEach(Consumer<? super T> action) {
+			return new PipelineTemplate<T>(new WorkloadRunnable(), source, stages, action).run();
+		}
+
+		/**
+		 * Start a for loop
+		 * 
+		 * @param action          action to perform on loop element
+		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+		 * @return LoopFuture
+		 */
+		public LoopFuture<T> forEach(double maxMilliseconds, Consumer<? super T> action) {
+			return new PipelineTemplate<T>(new WorkloadRunnable(maxMilliseconds), source, stages, action).run();
+		}
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @param action action to perform
+		 * @return LoopFuture
+		 */
+		public LoopFuture<T> asyncForEach(Consumer<? super T> action) {
+			return new PipelineTemplate<T>(new WorkloadRunnable(), source, stages, action).runAsync();
+		}
+
+		/**
+		 * Uses pseudo async alongside bukkit async, this means that non-thread safe
+		 * methods should be handled manually.
+		 * 
+		 * @param action          action to perform
+		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+		 * @return LoopFuture
+		 */
+		public LoopFuture<T> asyncForEach(double maxMilliseconds, Consumer<? super T> action) {
+			return new PipelineTemplate<T>(new WorkloadRunnable(maxMilliseconds), source, stages, action).runAsync();
+		}
+
+		/**
+		 * Start a for loop in idle time mode, see
+		 * {@linkplain WorkloadRunnable#startIdle()}.
+		 * 
+		 * @param action action to perform on loop element
+		 * @return LoopFuture
+		 */
+		public LoopFuture<T> idleForEach(Consumer<? super T> action) {
+			return new PipelineTemplate<T>(new WorkloadRunnable(), source, stages, action).runIdle();
+		}
+
+		/**
+		 * Creates a template from this loop's operations, so the same pipeline can be
+		 * run again and again.
+		 * 
+		 * @param action action to perform on loop element
+		 * @return template of this loop
+		 */
+		public AbstractLoopTemplate<T> toTemplate(Consumer<? super T> action) {
+			return new PipelineTemplate<T>(new WorkloadRunnable(), source, stages, action);
+		}
+
+	}
+
+	private static class PipelineState {
+
+		private boolean stopped;
+
+	}
+
+	@FunctionalInterface
+	private interface Stage {
+
+		Consumer<Object> wrap(Consumer<Object> downstream, PipelineState state);
+
+	}
+
+	private static class PipelineTemplate<T> extends AbstractLoopTemplate<T> {
+
+		private final Iterable<?> source;
+		private final Stage[] stages;
+		private final Consumer<? super T> action;
+		private PipelineState state;
+		private Consumer<Object> head;
+		private Iterator<?> iterator;
+
+		private PipelineTemplate(WorkloadRunnable workloadRunnable, Iterable<?> source, List<Stage> stages,
+				Consumer<? super T> action) {
+			super(workloadRunnable);
+			this.source = source;
+			this.stages = stages.toArray(new Stage[0]);
+			this.action = action;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected void rewind() {
+			LoopFuture<T> loopFuture = getLoopFuture();
+			state = new PipelineState();
+			Consumer<Object> sink = element -> {
+				action.accept((T) element);
+				loopFuture.currentElement = (T) element;
+				loopFuture.currentElementIndex++;
+			};
+			for (int i = stages.length - 1; i >= 0; i--) sink = stages[i].wrap(sink, state);
+			head = sink;
+			iterator = source.iterator();
+		}
+
+		/**
+		 * Progress of a lazy loop counts the source elements that were pulled
+		 */
+		@Override
+		protected long totalHint() {
+			return source instanceof Collection ? ((Collection<?>) source).size() : -1;
+		}
+
+		@Override
+		protected boolean step(LoopFuture<T> loopFuture) {
+			if (state.stopped || !iterator.hasNext()) {
+				iterator = null;
+				return false;
+			}
+			head.accept(iterator.next());
+			return true;
+		}
+
+	}
+
+	/**
+	 * Loops through entities without holding on to them. Only the unique ids are
+	 * copied when the loop starts, and every id is resolved right before its
+	 * element is processed, entities that are removed or no longer valid by then
+	 * are skipped. A loop can also be created from ids that were copied up front,
+	 * in which case every run goes over those same ids.
+	 */
+	public static class EntityPreparedLoop<E extends Entity> {
+
+		private final Supplier<? extends Collection<? extends E>> source;
+		private final UUID[] uniqueIds;
+		private final Function<UUID, ? extends Entity> resolver;
+
+		public EntityPreparedLoop(@Nonnull Supplier<? extends Collection<? extends E>> source,
+				@Nonnull Function<UUID, ? extends Entity> resolver) {
+			if (source == null) throw new NullPointerException("EntityPreparedLoop creation failure: source is null!");
+			this.source = source;
+			this.uniqueIds = null;
+			this.resolver = resolver;
+		}
+
+		public EntityPreparedLoop(@Nonnull UUID[] uniqueIds, @Nonnull Function<UUID, ? extends Entity> resolver) {
+			if (uniqueIds == null)
+				throw new NullPointerException("EntityPreparedLoop creation failure: uniqueIds is null!");
+			this.source = null;
+			this.uniqueIds = uniqueIds;
+			this.resolver = resolver;
+		}
+
+		private EntityLoopTemplate<E> newTemplate(WorkloadRunnable workloadRunnable, Consumer<? super E> action) {
+			return source != null ? new EntityLoopTemplate<E>(workloadRunnable, source, resolver, action)
+					: new EntityLoopTemplate<E>(workloadRunnable, uniqueIds, resolver, action);
+		}
+
+		/**
+		 * Start a for loop
+		 * 
+		 * @param action action to perform on entities that are still valid
+		 * @return LoopFuture
+		 */
+		public LoopFuture<E> forEach(Consumer<? super E> action) {
+			return newTemplate(new WorkloadRunnable(), action).run();
+		}
+
+		/**
+		 * Start a for loop
+		 * 
+		 * @param action          action to perform on entities that are still valid
+		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+		 * @return LoopFuture
+		 */
+		public LoopFuture<E> forEach(double maxMilliseconds, Consumer<? super E> action) {
+			return newTemplate(new WorkloadRunnable(maxMilliseconds), action).run();
+		}
+
+		/**
+		 * @param action action to perform on entities that are still valid
+		 * @return a template that takes a new snapshot of the source on every run, or
+		 *         reuses the copied ids
+		 */
+		public EntityLoopTemplate<E> toTemplate(Consumer<? super E> action) {
+			return newTemplate(new WorkloadRunnable(), action);
+		}
+
+	}
+
+	public static class EntityLoopTemplate<E extends Entity> extends AbstractLoopTemplate<E> {
+
+		private static final UUID[] EMPTY_SNAPSHOT = new UUID[0];
+
+		private final Supplier<? extends Collection<? extends E>> source;
+		private final UUID[] uniqueIds;
+		private final Function<UUID, ? extends Entity> resolver;
+		private final Consumer<? super E> action;
+		private UUID[] snapshot = EMPTY_SNAPSHOT;
+		private int position, size, skipped;
+
+		public EntityLoopTemplate(WorkloadRunnable workloadRunnable, Supplier<? extends Collection<? extends E>> source,
+				Function<UUID, ? extends Entity> resolver, Consumer<? super E> action) {
+			super(workloadRunnable);
+			this.source = source;
+			this.uniqueIds = null;
+			this.resolver = resolver;
+			this.action = action;
+		}
+
+		public EntityLoopTemplate(WorkloadRunnable workloadRunnable, UUID[] uniqueIds,
+				Function<UUID, ? extends Entity> resolver, Consumer<? super E> action) {
+			super(workloadRunnable);
+			this.source = null;
+			this.uniqueIds = uniqueIds;
+			this.resolver = resolver;
+			this.action = action;
+		}
+
+		@Override
+		protected void rewind() {
+			position = 0;
+			skipped = 0;
+			if (uniqueIds != null) {
+				// the snapshot is cleared as it's consumed, so the ids are copied on every run
+				if (snapshot.length < uniqueIds.length) snapshot = new UUID[uniqueIds.length];
+				System.arraycopy(uniqueIds, 0, snapshot, 0, uniqueIds.length);
+				size = uniqueIds.length;
+				return;
+			}
+			Collection<? extends E> entities = source.get();
+			if (snapshot.length < entities.size()) snapshot = new UUID[entities.size()];
+			size = 0;
+			for (E entity : entities) {
+				if (size == snapshot.length) snapshot = Arrays.copyOf(snapshot, size * 2 + 1);
+				snapshot[size++] = entity.getUniqueId();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected boolean step(LoopFuture<E> loopFuture) {
+			while (position < size) {
+				UUID uniqueId = snapshot[position];
+				snapshot[position++] = null;
+				Entity entity = resolver.apply(uniqueId);
+				if (entity == null || !entity.isValid()) {
+					skipped++;
+					continue;
+				}
+				action.accept((E) entity);
+				loopFuture.currentElement = (E) entity;
+				loopFuture.currentElementIndex++;
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		protected long totalHint() {
+			return size;
+		}
+
+		/**
+		 * @return how many entities of the current or last run were skipped since
+		 *         they were removed before being processed
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return size of the current or last run's snapshot
+		 */
+		public int getSnapshotSize() {
+			return size;
+		}
+
+	}
+
+	public interface IntCondition {
+
+		/**
+		 * This equals i < size in a for loop
+		 * 
+		 * @return A condition of {@code i < size} the most used condition in for loops
+		 */
+		public static IntCondition lessThanInt() {
+			return new LessThanIntCondition();
+		}
+
+		/**
+		 * This equals i > size in a for loop
+		 * 
+		 * @return A condition of {@code i > size} the second most used condition in for
+		 *         loops
+		 */
+		public static IntCondition moreThanInt() {
+			return new MoreThanIntCondition();
+		}
+
+		/**
+		 * This equals i != size in a for loop
+		 * 
+		 * @return A condition of {@code i != size} as if it's used in a for loop
+		 */
+		public static IntCondition notEqualInt() {
+			return new NotEqualIntCondition();
+		}
+
+		/**
+		 * This equals i == size in a for loop
+		 * 
+		 * @return A condition of {@code i == size} as if it's used in a for loop
+		 */
+		public static IntCondition equalInt() {
+			return new EqualIntCondition();
+		}
+
+		boolean isTrue(int currentIndex, int size);
+
+	}
+
+	private static class LessThanIntCondition implements IntCondition {
+
+		@Override
+		public boolean isTrue(int currentIndex, int size) {
+			return currentIndex < size;
+		}
+
+	}
+
+	private static class MoreThanIntCondition implements IntCondition {
+
+		@Override
+		public boolean isTrue(int currentIndex, int size) {
+			return currentIndex > size;
+		}
+
+	}
+
+	private static class NotEqualIntCondition implements IntCondition {
+
+		@Override
+		public boolean isTrue(int currentIndex, int size) {
+			return currentIndex != size;
+		}
+
+	}
+
+	private static class EqualIntCondition implements IntCondition {
+
+		@Override
+		public boolean isTrue(int currentIndex, int size) {
+			return currentIndex == size;
+		}
+
+	}
+
+	public interface IntOperation {
+
+		/**
+		 * This equals i++ used in a for loop
+		 * 
+		 * @return Operation: i++
+		 */
+		public static IntOperation increaseInt() {
+			return new IncreaseIntOperation();
+		}
+
+		/**
+		 * This equals i+(i) used in a for loop
+		 * 
+		 * @param i increase by (1 by default)
+		 * @return Operation: i+(i)
+		 */
+		public static IntOperation increaseInt(int i) {
+			IncreaseIntOperation operation = new IncreaseIntOperation();
+			operation.by = i;
+			return operation;
+		}
+
+		/**
+		 * This equals i-- used in a for loop
+		 * 
+		 * @return Operation: i--
+		 */
+		public static IntOperation decreaseInt() {
+			return new DecreaseIntOperation();
+		}
+
+		/**
+		 * This equals i-(i) used in a for loop
+		 * 
+		 * @param i decrease by (1 by default)
+		 * @return Operation: i-(i)
+		 */
+		public static IntOperation decreaseInt(int i) {
+			DecreaseIntOperation operation = new DecreaseIntOperation();
+			operation.by = i;
+			return operation;
+		}
+
+		int get();
+
+		int set(int i);
+
+		int update();
+
+	}
+
+	private static class IncreaseIntOperation implements IntOperation {
+
+		int i = 0;
+		int by = 1;
+
+		public IncreaseIntOperation() {
+			i = 0;
+		}
+
+		@Override
+		public int update() {
+			return i += by;
+		}
+
+		@Override
+		public int get() {
+			return i;
+		}
+
+		@Override
+		public int set(int i) {
+			return this.i = i;
+		}
+
+	}
+
+	private static class DecreaseIntOperation implements IntOperation {
+
+		int i = 0;
+		int by = 1;
+
+		public DecreaseIntOperation() {
+			i = 0;
+		}
+
+		@Override
+		public int update() {
+			return i -= by;
+		}
+
+		@Override
+		public int get() {
+			return i;
+		}
+
+		@Override
+		public int set(int i) {
+			return this.i = i;
+		}
+
+	}
+
+	/**
+	 * Runs the specified {@code runnable} in the main workload, which means that
+	 * any action that will be run, will wait for the previous actions that are also
+	 * run in the main workload to finish before execution.
+	 * 
+	 * @param runnable code to run () ->
+	 */
 	public static void run(Runnable runnable) {
-		MAIN_WORKLOAD_RUNNABLE.addWorkload(new RunnableWorkload(runnable));
+		mainWorkload().addWorkload(new RunnableWorkload(runnable));
+	}
+
+	/**
+	 * Consumes the specified {@code consumer} in the main workload, which means
+	 * that
+	 * any consumer that will be consumed, will wait for the previous actions that
+	 * are also
+	 * run in the main workload to finish before execution.
+	 * 
+	 * @param consumer consumer to consume c ->
+	 * @param object   object to include
+	 */
+	public static <T> void consume(Consumer<? super T> consumer, T object) {
+		mainWorkload().addPooledWorkload(object, consumer);
+	}
+
+	/**
+	 * Posts the specified {@code runnable} to the main workload mailbox. Unlike
+	 * {@linkplain #run(Runnable)}, this is safe to call from any thread. Posted
+	 * runnables are drained in order on the main thread, sharing the main
+	 * workload's time budget, so thousands of posts per tick cost a single
+	 * scheduler task instead of thousands.
+	 * 
+	 * @param runnable code to run () ->
+	 */
+	public static void post(Runnable runnable) {
+		mainWorkload().post(new RunnableWorkload(runnable));
+	}
+
+	/**
+	 * Posts the specified {@code consumer} to the main workload mailbox, safe to
+	 * call from any thread. See {@linkplain #post(Runnable)}.
+	 * 
+	 * @param consumer consumer to consume c ->
+	 * @param object   object to include
+	 */
+	public static <T> void post(Consumer<? super T> consumer, T object) {
+		mainWorkload().post(new ConsumerWorkload<T>(object, consumer));
+	}
+
+	/**
+	 * Supplies the specified {@code supplier} in the main workload, which means
+	 * that
+	 * any object that will be received from the supplier, will wait for the
+	 * previous actions and suppliers that are also
+	 * run and retrieved in the main workload to finish before execution.
+	 * 
+	 * @param supplier object to supply () -> object
+	 */
+	public static <T> SupplierWorkload<T> supply(Supplier<T> supplier) {
+		SupplierWorkload<T> supplierWorkload = new SupplierWorkload<T>(supplier).queued();
+		if (scheduler.isPrimaryThread())
+			mainWorkload().addWorkload(supplierWorkload);
+		else
+			mainWorkload().post(supplierWorkload);
+		return supplierWorkload;
+	}
+
+	/**
+	 * Supplies every supplier in the main workload, one workload each, and
+	 * completes a single future once all of them are supplied.
+	 * 
+	 * @param suppliers objects to supply () -> object
+	 * @return future completed with the supplied objects in the suppliers' order,
+	 *         or exceptionally if any supplier throws
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> CompletableFuture<List<T>> supplyAll(List<? extends Supplier<? extends T>> suppliers) {
+		CompletableFuture<List<T>> future = new CompletableFuture<>();
+		if (suppliers.isEmpty()) {
+			future.complete(new ArrayList<>());
+			return future;
+		}
+		Object[] results = new Object[suppliers.size()];
+		AtomicInteger remaining = new AtomicInteger(results.length);
+		boolean primaryThread = scheduler.isPrimaryThread();
+		WorkloadRunnable workloadRunnable = mainWorkload();
+		for (int i = 0; i < results.length; i++) {
+			int index = i;
+			Supplier<? extends T> supplier = suppliers.get(i);
+			Workload workload = new RunnableWorkload(() -> {
+				if (future.isDone()) return;
+				try {
+					results[index] = supplier.get();
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+					return;
+				}
+				if (remaining.decrementAndGet() == 0) future.complete((List<T>) Arrays.asList(results));
+			});
+			if (primaryThread)
+				workloadRunnable.addWorkload(workload);
+			else
+				workloadRunnable.post(workload);
+		}
+		return future;
+	}
+
+	/**
+	 * Creates a cache in front of {@linkplain #supply(Supplier)}, for main thread
+	 * only values that are read from many async tasks, like a world's time or a
+	 * player's location.
+	 * 
+	 * @param maxSize  maximum amount of cached keys, the least recently used key is
+	 *                 evicted first
+	 * @param ttlTicks ticks a supplied value stays valid, 1 to only share it within
+	 *                 about the same tick
+	 * @return the supply cache
+	 */
+	public static <K, V> SupplyCache<K, V> createSupplyCache(int maxSize, int ttlTicks) {
+		return new SupplyCache<K, V>(maxSize, ttlTicks);
+	}
+
+	/**
+	 * Creates an executor that runs tasks of the same key in submission order and
+	 * tasks of different keys in parallel, on its own pool of daemon threads.
+	 * 
+	 * @param name    name prefix of the executor's threads
+	 * @param threads amount of threads keys are spread across
+	 * @return the keyed executor, to be shut down once it's no longer used
+	 */
+	public static <K> KeyedExecutor<K> createKeyedExecutor(String name, int threads) {
+		return new KeyedExecutor<K>(name, threads);
+	}
+
+	/**
+	 * Runs the specified {@code runnable} asynchronously on the shared keyed
+	 * executor, after any previously submitted task of the same key, e.g a player's
+	 * unique id. Tasks of different keys run in parallel.
+	 * 
+	 * @param key      key to serialize the task with
+	 * @param runnable code to run () ->
+	 * @return future completed once the runnable has run
+	 */
+	public static CompletableFuture<Void> runKeyed(Object key, Runnable runnable) {
+		return SharedKeyedExecutor.get().run(key, runnable);
+	}
+
+	/**
+	 * Supplies the specified {@code supplier} asynchronously on the shared keyed
+	 * executor, see {@linkplain #runKeyed(Object, Runnable)}.
+	 * 
+	 * @param key      key to serialize the supplier with
+	 * @param supplier object to supply () -> object
+	 * @return future completed with the supplied object
+	 */
+	public static <T> CompletableFuture<T> supplyKeyed(Object key, Supplier<T> supplier) {
+		return SharedKeyedExecutor.get().supply(key, supplier);
+	}
+
+	/**
+	 * Shuts down the shared keyed executor once its pending tasks are done, see
+	 * {@linkplain KeyedExecutor#shutdown()}. Should be called when the plugin is
+	 * disabled, otherwise the executor's threads keep the plugin's class loader
+	 * alive across reloads.
+	 */
+	public static void shutdownKeyed() {
+		SharedKeyedExecutor.shutdown();
+	}
+
+	/**
+	 * The shared keyed executor is only created on first use, with a thread per
+	 * core minus the main thread, and again on the first use after
+	 * {@linkplain BukkitWorker#shutdownKeyed()}.
+	 */
+	private static class SharedKeyedExecutor {
+
+		private static KeyedExecutor<Object> executor;
+
+		private static synchronized KeyedExecutor<Object> get() {
+			if (executor == null) executor = new KeyedExecutor<>("BukkitWorker-Keyed",
+					Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+			return executor;
+		}
+
+		private static synchronized void shutdown() {
+			if (executor != null) executor.shutdown();
+			executor = null;
+		}
+
+	}
+
+	/**
+	 * Runs the specified {@code runnable} in a new workload, this means it won't
+	 * wait for an action to finish unless it is run in the same workload using
+	 * {@linkplain #runContinue(int, Runnable)}. This shouldn't be spammed, but
+	 * rather should be used when starting a heavy task. After that, the task should
+	 * be continued using runContinue
+	 * 
+	 * @param runnable code to run () ->
+	 * @return workload id, for further usage in runContinue
+	 */
+	public static int runNew(Runnable runnable) {
+		WorkloadRunnable workloadRunnable = new WorkloadRunnable();
+		int id = WORKLOADS.size();
+		workloadRunnable.addWorkload(new RunnableWorkload(runnable));
+		workloadRunnable.start();
+		WORKLOADS.put(id, workloadRunnable);
+		return id;
+	}
+
+	/**
+	 * Runs the specified {@code runnable} in a new workload, this means it won't
+	 * wait for an action to finish unless it is run in the same workload using
+	 * {@linkplain #runContinue(int, Runnable)}. This shouldn't be spammed, but
+	 * rather should be used when starting a heavy task. After that, the task should
+	 * be continued using runContinue
+	 * 
+	 * @param runnable        code to run () ->
+	 * @param maxMilliseconds how long can a tick last by default it's set to 2.5.
+	 *                        The value must be between 1.0 and 50.0 for a
+	 *                        beneficial effect. The higher the faster the more
+	 *                        server resources consumed.
+	 * @return workload id, for further usage in runContinue
+	 */
+	public static int runNew(double maxMilliseconds, Runnable runnable) {
+		WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
+		int id = WORKLOADS.size();
+		workloadRunnable.addWorkload(new RunnableWorkload(runnable));
+		workloadRunnable.start();
+		WORKLOADS.put(id, workloadRunnable);
+		return id;
+	}
+
+	/**
+	 * Runs the specified {@code runnable} in a new workload, this means it won't
+	 * wait for an action to finish unless it is run in the same workload using
+	 * {@linkplain #runContinue(int, Runnable)}. This shouldn't be spammed, but
+	 * rather should be used when starting a heavy task. After that, the task should
+	 * be continued using runContinue
+	 * 
+	 * @param runnable        code to run () ->
+	 * @param maxMilliseconds how long can a tick last by default it's set to 2.5.
+	 *                        The value must be between 1.0 and 50.0 for a
+	 *                        beneficial effect. The higher the faster the more
+	 *                        server resources consumed.
+	 * @param id              a reference for the workload, so it can be accessed
+	 *                        again
+	 * @return the given workload id, for further usage in runContinue
+	 */
+	public static int runNew(int id, double maxMilliseconds, Runnable runnable) {
+		WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
+		workloadRunnable.addWorkload(new RunnableWorkload(runnable));
+		workloadRunnable.start();
+		WORKLOADS.put(id, workloadRunnable);
+		return id;
+	}
+
+	/**
+	 * Continue using a workload by adding a task to it
+	 * 
+	 * @param id       id of a workload
+	 * @param runnable code to run () ->
+	 * @return specified workload id after workload addition
+	 */
+	public static int runContinue(int id, Runnable runnable) {
+		WORKLOADS.get(id).addWorkload(new RunnableWorkload(runnable));
+		return id;
+	}
+
+	/**
+	 * Creates a workload task without starting it and without workloads.
+	 * 
+	 * @return workload task that manages workloads
+	 */
+	public static WorkloadTask prepareTask() {
+		return new WorkloadTask(new WorkloadRunnable());
+	}
+
+	/**
+	 * Creates a workload task without starting it and without workloads. In
+	 * addition, it sets the maximum milliseconds a tick can last. It's set to 2.5
+	 * by default, which is about 5% of a tick since a tick is 50 milliseconds.
+	 * 
+	 * @param maxMillisecondsPerTick how many milliseconds a tick can last,
+	 *                               increasing this value will speed up the task in
+	 *                               return of decreasing the tps by a little
+	 * @return workload task that manages workloads
+	 */
+	public static WorkloadTask prepareTask(double maxMillisecondsPerTick) {
+		return new WorkloadTask(new WorkloadRunnable(maxMillisecondsPerTick));
+	}
+
+	/**
+	 * Creates a workload task that consumes items from a queue that spills to
+	 * memory-mapped files once more than {@code headCapacity} items are pending,
+	 * see {@link SpillingQueue}.
+	 * 
+	 * @param <T>          type of items
+	 * @param directory    directory to create the segment files in
+	 * @param codec        serializes items to and from the segment files
+	 * @param headCapacity maximum items kept on the heap
+	 * @param consumer     consumes each item in the order it was added
+	 * @return spilling workload task, not started yet
+	 */
+	public static <T> SpillingWorkloadTask<T> prepareSpillingTask(Path directory, ItemCodec<T> codec,
+			int headCapacity, Consumer<? super T> consumer) {
+		return new SpillingWorkloadTask<T>(new WorkloadRunnable(),
+				new SpillingQueue<T>(directory, codec, headCapacity, SpillingQueue.DEFAULT_SEGMENT_SIZE), consumer);
+	}
+
+	/**
+	 * Prepares a loop over the lines of a UTF-8 file, which are read on a
+	 * background thread while the loop runs, see {@link FileLoop}.
+	 * 
+	 * @param path file to read
+	 * @return A FileLoop that can setup its failure policy before it starts
+	 */
+	public static FileLoop prepareFileLoop(Path path) {
+		return new FileLoop(path, StandardCharsets.UTF_8, FileLoop.DEFAULT_BUFFERED_LINES);
+	}
+
+	/**
+	 * @param path          file to read
+	 * @param charset       charset of the file
+	 * @param bufferedLines maximum lines read ahead of the loop, which bounds its
+	 *                      memory use
+	 * @return A FileLoop that can setup its failure policy before it starts
+	 */
+	public static FileLoop prepareFileLoop(Path path, Charset charset, int bufferedLines) {
+		return new FileLoop(path, charset, bufferedLines);
+	}
+
+	/**
+	 * Creates an empty block change buffer, see {@link BlockChangeBuffer}.
+	 * 
+	 * @param world           world the changes are applied in
+	 * @param initialCapacity expected amount of changes
+	 * @return block change buffer to add changes to
+	 */
+	public static BlockChangeBuffer prepareBlockChanges(World world, int initialCapacity) {
+		return new BlockChangeBuffer(world, initialCapacity);
+	}
+
+	/**
+	 * Creates an empty task graph, nodes are added to it with their dependencies
+	 * and started all at once using {@linkplain TaskGraph#start()}.
+	 * 
+	 * @return task graph that runs independent workload tasks concurrently
+	 */
+	public static TaskGraph prepareGraph() {
+		return new TaskGraph();
+	}
+
+	/**
+	 * Loops through a collection's elements asynchronously
+	 * 
+	 * @param <T>        type of object
+	 * @param collection collection to loop through
+	 * @param action     action perform on loop elements
+	 * @return LoopFuture that contains a CompletableFuture and the elements
+	 *         currently being processed, returns a completed LoopFuture if
+	 *         collection doesn't have elements
+	 */
+	public static <T> LoopFuture<T> forEach(Collection<T> collection, Consumer<? super T> action) {
+		if (collection.isEmpty()) return LoopFuture.createCompleted();
+		LoopFuture<T> loopFuture = new LoopFuture<>();
+		WorkloadRunnable workloadRunnable = new WorkloadRunnable();
+		workloadRunnable.start();
+		for (T element : collection) {
+			workloadRunnable.addWorkload(new RunnableWorkload(() -> action.accept(element)));
+			loopFuture.currentElement = element;
+			loopFuture.currentElementIndex++;
+		}
+		workloadRunnable.run(() -> loopFuture.completableFuture.complete(loopFuture.currentElement));
+		return loopFuture;
+	}
+
+	/**
+	 * 
+	 * @param <T>  type of list's elements
+	 * @param list list elements to prepare a loop for
+	 * @return A PreparedLoop that can setup conditions before a loop starts
+	 */
+	public static <T> PreparedLoop<T> prepareLoop(List<T> list) {
+		return new PreparedLoop<T>(list);
+	}
+
+	/**
+	 * 
+	 * @param <T>        type of collection's elements
+	 * @param collection collection to prepare a loop for
+	 * @return A PreparedLoop that can setup conditions before a loop starts
+	 */
+	public static <T> PreparedLoop<T> prepareLoop(Collection<T> collection) {
+		return new PreparedLoop<T>(collection);
+	}
+
+	/**
+	 * 
+	 * @param <T>      type of iterable's elements
+	 * @param iterable iterable to prepare a loop for
+	 * @return A PreparedLoop that can setup conditions before a loop starts
+	 */
+	public static <T> PreparedLoop<T> prepareLoop(Iterable<T> iterable) {
+		return new PreparedLoop<T>(iterable);
+	}
+
+	/**
+	 * Wraps a collection so additions and marked elements are tracked, see
+	 * {@linkplain #prepareDeltaLoop(TrackedCollection)}.
+	 * 
+	 * @param <T>        type of collection's elements
+	 * @param collection collection to track, every element starts out dirty
+	 * @return the tracked collection, to be modified instead of the wrapped one
+	 */
+	public static <T> TrackedCollection<T> track(Collection<T> collection) {
+		return new TrackedCollection<T>(collection);
+	}
+
+	/**
+	 * Prepares a loop over the elements of a tracked collection that changed since
+	 * its last completed delta loop, see {@linkplain TrackedCollection#prepareDeltaLoop()}.
+	 * 
+	 * @param <T>     type of collection's elements
+	 * @param tracked tracked collection to prepare a loop for
+	 * @return A PreparedLoop over the dirty elements
+	 */
+	public static <T> PreparedLoop<T> prepareDeltaLoop(TrackedCollection<T> tracked) {
+		return tracked.prepareDeltaLoop();
+	}
+
+	/**
+	 * 
+	 * @param <T>   type of array's elements
+	 * @param array array elements to prepare a loop for
+	 * @return An ArrayPreparedLoop that can setup conditions before a loop starts
+	 */
+	public static <T> ArrayPreparedLoop<T> prepareLoop(T[] array) {
+		return new ArrayPreparedLoop<T>(array);
+	}
+
+	/**
+	 * This equals:
+	 * <p>
+	 * {@code for (int i = 0; i < size; i++);}
+	 * 
+	 * @param size the number the loop ends at
+	 * @return An equivalent to PreparedLoop, but for integers.
+	 */
+	public static IntPreparedLoop prepareLoopInt(int size) {
+		return new IntPreparedLoop(0, IntCondition.lessThanInt(), IntOperation.increaseInt(), size);
+	}
+
+	/**
+	 * This equals:
+	 * <p>
+	 * {@code for (int i = startIndex; i < size; i++);}
+	 * 
+	 * @param size       the number the loop ends at
+	 * @param startIndex the number the loop starts from
+	 * @return An equivalent to PreparedLoop, but for integers.
+	 */
+	public static IntPreparedLoop prepareLoopInt(int startIndex, int size) {
+		return new IntPreparedLoop(startIndex, IntCondition.lessThanInt(), IntOperation.increaseInt(), size);
+	}
+
+	/**
+	 * This equals:
+	 * <p>
+	 * {@code for (int i = 0; intCondition; intOperation);}
+	 * 
+	 * @param size         the number the loop ends at. It's used by the int
+	 *                     condition
+	 * @param intCondition the condition that keeps the loop running
+	 * @param intOperation the operation that's performed on {@code i}, such as
+	 *                     {@code IntOperation.increaseInt()} which equals
+	 *                     {@code i++}
+	 * @return An equivalent to PreparedLoop, but for integers.
+	 */
+	public static IntPreparedLoop prepareLoopInt(int size, IntCondition intCondition, IntOperation intOperation) {
+		return new IntPreparedLoop(0, intCondition, intOperation, size);
+	}
+
+	/**
+	 * This equals:
+	 * <p>
+	 * {@code for (int i = startIndex; intCondition; intOperation);}
+	 * 
+	 * @param size         the number the loop ends at. It's used by the int
+	 *                     condition
+	 * @param startIndex   the number the loop starts from
+	 * @param intCondition the condition that keeps the loop running
+	 * @param intOperation the operation that's performed on {@code i}, such as
+	 *                     {@code IntOperation.increaseInt()} which equals
+	 *                     {@code i++}
+	 * @return An equivalent to PreparedLoop, but for integers.
+	 */
+	public static IntPreparedLoop prepareLoopInt(int startIndex, int size, IntCondition intCondition,
+			IntOperation intOperation) {
+		return new IntPreparedLoop(startIndex, intCondition, intOperation, size);
+	}
+
+	/**
+	 * Prepares a loop over a snapshot of the entities' unique ids, see
+	 * {@link EntityPreparedLoop}. The ids are copied right away and the collection
+	 * isn't kept, so templates of this loop go over the same ids on every run.
+	 * 
+	 * @param <E>      type of entities
+	 * @param entities entities to loop through, e.g {@code world.getEntities()}
+	 * @return An EntityPreparedLoop that resolves entities as it goes
+	 */
+	public static <E extends Entity> EntityPreparedLoop<E> prepareEntityLoop(Collection<? extends E> entities) {
+		UUID[] uniqueIds = new UUID[entities.size()];
+		int size = 0;
+		for (E entity : entities) {
+			if (size == uniqueIds.length) uniqueIds = Arrays.copyOf(uniqueIds, size * 2 + 1);
+			uniqueIds[size++] = entity.getUniqueId();
+		}
+		return new EntityPreparedLoop<E>(size == uniqueIds.length ? uniqueIds : Arrays.copyOf(uniqueIds, size),
+				Bukkit::getEntity);
+	}
+
+	/**
+	 * Prepares a loop over a snapshot of the online players' unique ids, players
+	 * that quit before being processed are skipped.
+	 * 
+	 * @return An EntityPreparedLoop that resolves players as they go
+	 */
+	public static EntityPreparedLoop<Player> prepareOnlinePlayersLoop() {
+		return new EntityPreparedLoop<Player>(Bukkit::getOnlinePlayers, Bukkit::getPlayer);
+	}
+
+	/**
+	 * Creates a loop template for recurring loops, the source is asked for its
+	 * elements again every time the template is run.
+	 * 
+	 * @param <T>    type of elements
+	 * @param source supplies the elements to loop through on each run
+	 * @param action action to perform on loop elements
+	 * @return A LoopTemplate that can be run repeatedly
+	 */
+	public static <T> LoopTemplate<T> prepareTemplate(Supplier<? extends Iterable<T>> source,
+			Consumer<? super T> action) {
+		return new LoopTemplate<T>(new WorkloadRunnable(), source, action);
+	}
+
+	/**
+	 * Creates a loop template for recurring loops, the source is asked for its
+	 * elements again every time the template is run.
+	 * 
+	 * @param <T>             type of elements
+	 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+	 * @param source          supplies the elements to loop through on each run
+	 * @param action          action to perform on loop elements
+	 * @return A LoopTemplate that can be run repeatedly
+	 */
+	public static <T> LoopTemplate<T> prepareTemplate(double maxMilliseconds, Supplier<? extends Iterable<T>> source,
+			Consumer<? super T> action) {
+		return new LoopTemplate<T>(new WorkloadRunnable(maxMilliseconds), source, action);
+	}
+
+	/**
+	 * This equals a recurring:
+	 * <p>
+	 * {@code for (int i = 0; i < size; i++);}
+	 * 
+	 * @param size   supplies the number the loop ends at on each run
+	 * @param action action to perform on {@code i}
+	 * @return An equivalent to LoopTemplate, but for integers.
+	 */
+	public static IntLoopTemplate prepareIntTemplate(IntSupplier size, IntConsumer action) {
+		return new IntLoopTemplate(new WorkloadRunnable(), 0, size, IntCondition.lessThanInt(),
+				IntOperation.increaseInt(), action);
+	}
+
+	/**
+	 * This equals a recurring:
+	 * <p>
+	 * {@code for (int i = startIndex; intCondition; intOperation);}
+	 * 
+	 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+	 * @param startIndex      the number the loop starts from
+	 * @param size            supplies the number the loop ends at on each run
+	 * @param intCondition    the condition that keeps the loop running
+	 * @param intOperation    the operation that's performed on {@code i}
+	 * @param action          action to perform on {@code i}
+	 * @return An equivalent to LoopTemplate, but for integers.
+	 */
+	public static IntLoopTemplate prepareIntTemplate(double maxMilliseconds, int startIndex, IntSupplier size,
+			IntCondition intCondition, IntOperation intOperation, IntConsumer action) {
+		return new IntLoopTemplate(new WorkloadRunnable(maxMilliseconds), startIndex, size, intCondition,
+				intOperation, action);
+	}
+
+	/**
+	 * Cancels a workload by removing any pending tasks and canceling the bukkit
+	 * task that holds it
+	 * 
+	 * @param id id of workload to cancel
+	 */
+	public static void cancel(int id) {
+		if (!WORKLOADS.containsKey(id)) return;
+		WORKLOADS.get(id).clearWorkloads();
+		WORKLOADS.get(id).cancel();
+	}
+
+	public static void cancel(WorkloadTask workloadTask) {
+		if (workloadTask != null) workloadTask.cancel();
+	}
+
+	public static void cancel(WorkloadTask workloadTask, boolean clearWorkloads) {
+		if (clearWorkloads) workloadTask.clearAll();
+		workloadTask.cancel();
+	}
+
+	public static void cancel(WorkloadRunnable workloadRunnable) {
+		workloadRunnable.cancel();
+	}
+
+	public static void cancel(WorkloadRunnable workloadRunnable, boolean clearWorkloads) {
+		if (clearWorkloads) workloadRunnable.clearWorkloads();
+		workloadRunnable.cancel();
+	}
+
+	public static void addCanceller(int id) {
+		WORKLOADS.get(id).addWorkload(new CancelWorkload());
+	}
+
+	public static void addCanceller(WorkloadTask workloadTask) {
+		workloadTask.addCancellerWorkload();
+	}
+
+	public static void addCanceller(WorkloadRunnable workloadRunnable) {
+		workloadRunnable.addWorkload(new CancelWorkload());
+	}
+
+	/**
+	 * Cancels a workload by removing any pending tasks and canceling the bukkit
+	 * task that holds it, and then removes the work load from the memory if release
+	 * is true.
+	 * 
+	 * @param id      id of workload to cancel
+	 * @param release whether to remove workload from memory or not
+	 */
+	public static void cancel(int id, boolean release) {
+		cancel(id);
+		if (release) WORKLOADS.remove(id);
+	}
+
+	public static boolean isCancelled(int id) {
+		return !WORKLOADS.containsKey(id) || WORKLOADS.get(id).isEmpty();
+	}
+
+	public static boolean isReleased(int id) {
+		return !WORKLOADS.containsKey(id);
+	}
+
+	public static boolean isPendingTasks(int id) {
+		return !WORKLOADS.get(id).isEmpty();
+	}
+
+	/**
+	 * Caches values supplied in the main workload by key, see
+	 * {@linkplain BukkitWorker#createSupplyCache(int, int)}. Concurrent requests
+	 * for a key that isn't cached share a single main thread supply, and values
+	 * expire a fixed amount of ticks after they were supplied. Failed supplies
+	 * aren't cached.
+	 */
+	public static class SupplyCache<K, V> {
+
+		private final long ttlNanos;
+		private final Map<K, CacheEntry> entries;
+		private long hits, misses;
+
+		private SupplyCache(int maxSize, int ttlTicks) {
+			if (maxSize < 1) throw new IllegalArgumentException("SupplyCache creation failure: maxSize must be positive!");
+			this.ttlNanos = Math.max(1, ttlTicks) * NANOS_PER_TICK;
+			this.entries = new LinkedHashMap<K, CacheEntry>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, CacheEntry> eldest) {
+					return size() > maxSize;
+				}
+
+			};
+		}
+
+		/**
+		 * @param key      key of the value
+		 * @param supplier supplies the value in the main workload if it isn't cached
+		 *                 or expired () -> object
+		 * @return future of the cached, in-flight or newly supplied value
+		 */
+		public CompletableFuture<V> get(@Nonnull K key, Supplier<V> supplier) {
+			if (key == null) throw new NullPointerException("SupplyCache lookup failure: key is null!");
+			CacheEntry entry;
+			synchronized (this) {
+				entry = entries.get(key);
+				if (entry != null && !entry.isExpired(scheduler.nanoTime())) {
+					hits++;
+					return entry.future;
+				}
+				misses++;
+				entry = new CacheEntry();
+				entries.put(key, entry);
+			}
+			CacheEntry supplied = entry;
+			supply(supplier).getCompletableFuture().whenComplete((value, throwable) -> {
+				if (throwable != null) {
+					synchronized (this) {
+						entries.remove(key, supplied);
+					}
+					supplied.future.completeExceptionally(throwable);
+					return;
+				}
+				supplied.suppliedTime = scheduler.nanoTime();
+				supplied.supplied = true;
+				supplied.future.complete(value);
+			});
+			return entry.future;
+		}
+
+		public synchronized void invalidate(K key) {
+			entries.remove(key);
+		}
+
+		public synchronized void invalidateAll() {
+			entries.clear();
+		}
+
+		public synchronized int size() {
+			return entries.size();
+		}
+
+		/**
+		 * @return lookups answered with a cached or in-flight value
+		 */
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return lookups that needed a new main thread supply
+		 */
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		private class CacheEntry {
+
+			private final CompletableFuture<V> future = new CompletableFuture<>();
+			private volatile boolean supplied;
+			private volatile long suppliedTime;
+
+			private boolean isExpired(long now) {
+				return supplied && now - suppliedTime >= ttlNanos;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Runs tasks of the same key one after another in submission order, and tasks
+	 * of different keys in parallel across a fixed pool of threads. Every active
+	 * key has a mailbox that is queued on the pool while it has tasks, and removed
+	 * once it runs empty, so idle keys cost nothing.
+	 * <p>
+	 * A key's mailbox runs at most {@value #BATCH_SIZE} tasks before going back to
+	 * the end of the pool's queue, so a busy key can't starve the others.
+	 */
+	public static class KeyedExecutor<K> {
+
+		private static final int BATCH_SIZE = 64;
+
+		private final Map<K, KeyMailbox> mailboxes = new ConcurrentHashMap<>();
+		private final ExecutorService executorService;
+
+		private KeyedExecutor(String name, int threads) {
+			if (threads < 1) throw new IllegalArgumentException("KeyedExecutor creation failure: threads must be positive!");
+			AtomicInteger threadIds = new AtomicInteger();
+			executorService = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, name + "-" + threadIds.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		/**
+		 * @param key      key to serialize the task with
+		 * @param runnable code to run () ->
+		 * @return future completed once the runnable has run, or exceptionally if it
+		 *         throws
+		 */
+		public CompletableFuture<Void> run(@Nonnull K key, Runnable runnable) {
+			return supply(key, () -> {
+				runnable.run();
+				return null;
+			});
+		}
+
+		/**
+		 * @param key      key to serialize the supplier with
+		 * @param supplier object to supply () -> object
+		 * @return future completed with the supplied object, or exceptionally if the
+		 *         supplier throws or the executor is shut down
+		 */
+		public <T> CompletableFuture<T> supply(@Nonnull K key, Supplier<T> supplier) {
+			if (key == null) throw new NullPointerException("KeyedExecutor submission failure: key is null!");
+			KeyedTask<T> task = new KeyedTask<T>(supplier);
+			if (executorService.isShutdown()) {
+				task.future.completeExceptionally(
+						new RejectedExecutionException("KeyedExecutor submission failure: executor is shut down!"));
+				return task.future;
+			}
+			boolean[] created = new boolean[1];
+			KeyMailbox mailbox = mailboxes.compute(key, (k, existing) -> {
+				if (existing == null) {
+					existing = new KeyMailbox(k);
+					created[0] = true;
+				}
+				existing.tasks.offer(task);
+				return existing;
+			});
+			if (created[0]) {
+				try {
+					executorService.execute(mailbox);
+				} catch (RejectedExecutionException e) {
+					// shut down in between, tasks offered before the removal are failed here,
+					// later ones get a new mailbox
+					mailboxes.remove(key, mailbox);
+					KeyedTask<?> queued;
+					while ((queued = mailbox.tasks.poll()) != null) queued.future.completeExceptionally(e);
+				}
+			}
+			return task.future;
+		}
+
+		/**
+		 * @return amount of keys that have pending or running tasks
+		 */
+		public int getActiveKeyCount() {
+			return mailboxes.size();
+		}
+
+		/**
+		 * Lets the pending tasks finish and stops the threads afterwards, tasks
+		 * submitted from then on get a future completed exceptionally with a
+		 * {@link RejectedExecutionException}.
+		 */
+		public void shutdown() {
+			executorService.shutdown();
+		}
+
+		private static class KeyedTask<T> implements Runnable {
+
+			private final Supplier<T> supplier;
+			private final CompletableFuture<T> future = new CompletableFuture<>();
+
+			private KeyedTask(Supplier<T> supplier) {
+				this.supplier = supplier;
+			}
+
+			@Override
+			public void run() {
+				try {
+					future.complete(supplier.get());
+				} catch (Throwable throwable) {
+					future.completeExceptionally(throwable);
+				}
+			}
+
+		}
+
+		private class KeyMailbox implements Runnable {
+
+			private final K key;
+			private final Queue<KeyedTask<?>> tasks = new ConcurrentLinkedQueue<>();
+
+			private KeyMailbox(K key) {
+				this.key = key;
+			}
+
+			@Override
+			public void run() {
+				boolean active;
+				do {
+					KeyedTask<?> task;
+					for (int i = 0; i < BATCH_SIZE && (task = tasks.poll()) != null; i++) task.run();
+					// tasks are only offered inside compute, so the mailbox can't be removed
+					// while a task is being added to it
+					active = mailboxes.computeIfPresent(key, (k, mailbox) -> mailbox.tasks.isEmpty() ? null : mailbox) != null;
+					// once shut down the pool rejects the mailbox, so it's drained here instead
+				} while (active && executorService.isShutdown());
+				if (!active) return;
+				try {
+					executorService.execute(this);
+				} catch (RejectedExecutionException e) {
+					// shut down after the check, drained here like above
+					run();
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * A dependency graph of workload tasks. Every node starts as soon as all of
+	 * its dependencies are completed, so independent nodes run concurrently,
+	 * time-sliced in their own workload tasks on the main thread, or in parallel
+	 * when they're async.
+	 * <p>
+	 * {@code graph.node("backup", ...); graph.asyncNode("compress", ...).dependsOn("backup");}
+	 */
+	public static class TaskGraph {
+
+		private final Map<String, GraphNode> nodes = new LinkedHashMap<>();
+		private final CompletableFuture<Void> completableFuture = new CompletableFuture<>();
+		private final AtomicInteger remaining = new AtomicInteger();
+		private boolean started;
+
+		/**
+		 * Adds a node that runs its workloads in a main thread workload task
+		 * 
+		 * @param name      unique name of the node
+		 * @param workloads adds the node's workloads to the given workload task
+		 * @return the added node
+		 */
+		public GraphNode node(String name, Consumer<WorkloadTask> workloads) {
+			return addNode(new GraphNode(name, node -> startTask(node, workloads, false)));
+		}
+
+		/**
+		 * Adds a node that runs the runnable as a single workload on the main thread
+		 * 
+		 * @param name     unique name of the node
+		 * @param runnable code to run () ->
+		 * @return the added node
+		 */
+		public GraphNode node(String name, Runnable runnable) {
+			return node(name, task -> task.addWorkload(runnable));
+		}
+
+		/**
+		 * Adds a node that runs its workloads in a bukkit async workload task, this
+		 * means that non-thread safe methods should be handled manually.
+		 * 
+		 * @param name      unique name of the node
+		 * @param workloads adds the node's workloads to the given workload task
+		 * @return the added node
+		 */
+		public GraphNode asyncNode(String name, Consumer<WorkloadTask> workloads) {
+			return addNode(new GraphNode(name, node -> startTask(node, workloads, true)));
+		}
+
+		public GraphNode asyncNode(String name, Runnable runnable) {
+			return asyncNode(name, task -> task.addWorkload(runnable));
+		}
+
+		/**
+		 * Adds a node that starts a loop, the node is completed once the loop's future
+		 * is completed.
+		 * 
+		 * @param name unique name of the node
+		 * @param loop starts the loop, e.g {@code () -> prepareLoop(list).forEach(..)}
+		 * @return the added node
+		 */
+		public GraphNode loopNode(String name, Supplier<LoopFuture<?>> loop) {
+			return addNode(new GraphNode(name, node -> loop.get().getCompletableFuture().whenComplete((r, t) -> {
+				if (t == null)
+					node.completableFuture.complete(null);
+				else
+					node.completableFuture.completeExceptionally(t);
+			})));
+		}
+
+		public GraphNode getNode(String name) {
+			return nodes.get(name);
+		}
+
+		private GraphNode addNode(GraphNode node) {
+			if (started) throw new IllegalStateException("TaskGraph node addition failure: graph already started!");
+			if (nodes.putIfAbsent(node.name, node) != null)
+				throw new IllegalArgumentException("TaskGraph node addition failure: duplicate node " + node.name);
+			node.graph = this;
+			return node;
+		}
+
+		private void startTask(GraphNode node, Consumer<WorkloadTask> workloads, boolean bukkitAsync) {
+			WorkloadTask workloadTask = prepareTask();
+			// a throwing workload fails the node, so its dependents never start
+			workloadTask.workloadRunnable.setFailurePolicy(FailurePolicy.FAIL_LOOP,
+					node.completableFuture::completeExceptionally);
+			workloads.accept(workloadTask);
+			workloadTask.addWorkload(() -> {
+				workloadTask.cancel();
+				node.completableFuture.complete(null);
+			});
+			workloadTask.start(bukkitAsync);
+		}
+
+		/**
+		 * Starts every node without dependencies, the rest are started once their
+		 * dependencies complete.
+		 * 
+		 * @return future that completes when all nodes are completed, or
+		 *         exceptionally when a node fails
+		 */
+		public CompletableFuture<Void> start() {
+			if (started) return completableFuture;
+			started = true;
+			checkAcyclic();
+			if (nodes.isEmpty()) {
+				completableFuture.complete(null);
+				return completableFuture;
+			}
+			remaining.set(nodes.size());
+			List<GraphNode> roots = new ArrayList<>();
+			for (GraphNode node : nodes.values()) {
+				node.pending.set(node.dependencies.size());
+				if (node.dependencies.isEmpty()) roots.add(node);
+			}
+			for (GraphNode root : roots) root.launch();
+			return completableFuture;
+		}
+
+		public CompletableFuture<Void> getCompletableFuture() {
+			return completableFuture;
+		}
+
+		private void checkAcyclic() {
+			Map<GraphNode, Integer> inDegrees = new HashMap<>();
+			Deque<GraphNode> ready = new ArrayDeque<>();
+			for (GraphNode node : nodes.values()) {
+				inDegrees.put(node, node.dependencies.size());
+				if (node.dependencies.isEmpty()) ready.add(node);
+			}
+			int visited = 0;
+			GraphNode node;
+			while ((node = ready.poll()) != null) {
+				visited++;
+				for (GraphNode dependent : node.dependents)
+					if (inDegrees.merge(dependent, -1, Integer::sum) == 0) ready.add(dependent);
+			}
+			if (visited != nodes.size())
+				throw new IllegalStateException("TaskGraph start failure: dependencies contain a cycle!");
+		}
+
+		private void onNodeCompleted(GraphNode node, Throwable throwable) {
+			if (throwable != null) {
+				completableFuture.completeExceptionally(throwable);
+				return;
+			}
+			if (completableFuture.isDone()) return;
+			for (GraphNode dependent : node.dependents)
+				if (dependent.pending.decrementAndGet() == 0) dependent.launch();
+			if (remaining.decrementAndGet() == 0) completableFuture.complete(null);
+		}
+
+	}
+
+	public static class GraphNode {
+
+		private final String name;
+		private final Consumer<GraphNode> launcher;
+		private final List<GraphNode> dependencies = new ArrayList<>();
+		private final List<GraphNode> dependents = new ArrayList<>();
+		private final AtomicInteger pending = new AtomicInteger();
+		private final CompletableFuture<Void> completableFuture = new CompletableFuture<>();
+		private TaskGraph graph;
+
+		private GraphNode(String name, Consumer<GraphNode> launcher) {
+			this.name = name;
+			this.launcher = launcher;
+		}
+
+		/**
+		 * @param names names of nodes that must complete before this node starts
+		 * @return this node
+		 */
+		public GraphNode dependsOn(String... names) {
+			for (String name : names) {
+				GraphNode dependency = graph.nodes.get(name);
+				if (dependency == null)
+					throw new IllegalArgumentException("GraphNode dependency failure: unknown node " + name);
+				dependsOn(dependency);
+			}
+			return this;
+		}
+
+		/**
+		 * @param nodes nodes that must complete before this node starts
+		 * @return this node
+		 */
+		public GraphNode dependsOn(GraphNode... nodes) {
+			if (graph.started) throw new IllegalStateException("GraphNode dependency failure: graph already started!");
+			for (GraphNode dependency : nodes) {
+				if (dependency.graph != graph)
+					throw new IllegalArgumentException("GraphNode dependency failure: node belongs to another graph!");
+				if (dependencies.contains(dependency)) continue;
+				dependencies.add(dependency);
+				dependency.dependents.add(this);
+			}
+			return this;
+		}
+
+		private void launch() {
+			completableFuture.whenComplete((r, t) -> graph.onNodeCompleted(this, t));
+			try {
+				launcher.accept(this);
+			} catch (Throwable e) {
+				completableFuture.completeExceptionally(e);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public CompletableFuture<Void> getCompletableFuture() {
+			return completableFuture;
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + completableFuture.toString();
+		}
+
+	}
+
+	/**
+	 * Serializes queue items for {@link SpillingQueue} segment files.
+	 */
+	public interface ItemCodec<T> {
+
+		/**
+		 * UTF-8 codec for strings
+		 */
+		public static ItemCodec<String> utf8() {
+			return new ItemCodec<String>() {
+
+				@Override
+				public void encode(String item, ByteBuffer buffer) {
+					buffer.put(item.getBytes(StandardCharsets.UTF_8));
+				}
+
+				@Override
+				public String decode(ByteBuffer buffer) {
+					byte[] bytes = new byte[buffer.remaining()];
+					buffer.get(bytes);
+					return new String(bytes, StandardCharsets.UTF_8);
+				}
+
+			};
+		}
+
+		/**
+		 * @param item   item to write
+		 * @param buffer buffer to write to, a bigger buffer is provided if a
+		 *               {@link BufferOverflowException} is thrown
+		 */
+		void encode(T item, ByteBuffer buffer);
+
+		/**
+		 * @param buffer buffer positioned at the item and limited to its length
+		 * @return decoded item
+		 */
+		T decode(ByteBuffer buffer);
+
+	}
+
+	/**
+	 * A FIFO queue with a bounded heap footprint. Up to {@code headCapacity} items
+	 * are kept on the heap, anything past that is serialized into memory-mapped
+	 * segment files and read back in order once the head is drained. Segments are
+	 * deleted as soon as they're fully read. Thread safe.
+	 */
+	public static class SpillingQueue<T> {
+
+		public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+		private final Path directory;
+		private final ItemCodec<T> codec;
+		private final int headCapacity, segmentSize;
+		private final Deque<T> head;
+		private final Deque<Segment> segments = new ArrayDeque<>();
+		private ByteBuffer scratch = ByteBuffer.allocate(256);
+		private long size, spilledCount;
+		private int segmentCount;
+
+		public SpillingQueue(@Nonnull Path directory, @Nonnull ItemCodec<T> codec, int headCapacity, int segmentSize) {
+			if (directory == null || codec == null)
+				throw new NullPointerException("SpillingQueue creation failure: directory or codec is null!");
+			if (headCapacity < 1) throw new IllegalArgumentException("SpillingQueue creation failure: headCapacity < 1");
+			this.directory = directory;
+			this.codec = codec;
+			this.headCapacity = headCapacity;
+			this.segmentSize = segmentSize;
+			this.head = new ArrayDeque<>(Math.min(headCapacity, 1024));
+		}
+
+		/**
+		 * Adds an item, once spilling has started, items keep going to the segment
+		 * files until they're drained, so the order is kept.
+		 * 
+		 * @param item item to add
+		 */
+		public synchronized void add(T item) {
+			if (segments.isEmpty() && head.size() < headCapacity)
+				head.add(item);
+			else
+				spill(item);
+			size++;
+		}
+
+		/**
+		 * @return the oldest item, or null if the queue is empty
+		 */
+		public synchronized T poll() {
+			if (head.isEmpty() && !segments.isEmpty()) refill();
+			T item = head.poll();
+			if (item != null) size--;
+			return item;
+		}
+
+		public synchronized long size() {
+			return size;
+		}
+
+		public synchronized boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * @return how many items have been written to segment files so far
+		 */
+		public synchronized long getSpilledCount() {
+			return spilledCount;
+		}
+
+		/**
+		 * Removes every item and deletes the segment files
+		 */
+		public synchronized void clear() {
+			head.clear();
+			Segment segment;
+			while ((segment = segments.poll()) != null) segment.delete();
+			size = 0;
+		}
+
+		private void spill(T item) {
+			ByteBuffer encoded = encode(item);
+			int recordSize = Integer.BYTES + encoded.remaining();
+			Segment segment = segments.peekLast();
+			if (segment == null || segment.buffer.capacity() - segment.writePosition < recordSize) {
+				segment = new Segment(directory.resolve("spill-" + System.identityHashCode(this) + "-"
+						+ segmentCount++ + ".seg"), Math.max(segmentSize, recordSize));
+				segments.add(segment);
+			}
+			segment.buffer.position(segment.writePosition);
+			segment.buffer.putInt(encoded.remaining());
+			segment.buffer.put(encoded);
+			segment.writePosition = segment.buffer.position();
+			spilledCount++;
+		}
+
+		private ByteBuffer encode(T item) {
+			while (true) {
+				scratch.clear();
+				try {
+					codec.encode(item, scratch);
+					scratch.flip();
+					return scratch;
+				} catch (BufferOverflowException e) {
+					scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+				}
+			}
+		}
+
+		private void refill() {
+			while (head.size() < headCapacity) {
+				Segment segment = segments.peekFirst();
+				if (segment == null) return;
+				if (segment.readPosition == segment.writePosition) {
+					segments.poll();
+					segment.delete();
+					continue;
+				}
+				ByteBuffer record = segment.buffer.duplicate();
+				record.position(segment.readPosition);
+				int length = record.getInt();
+				record.limit(record.position() + length);
+				head.add(codec.decode(record.slice()));
+				segment.readPosition += Integer.BYTES + length;
+			}
+		}
+
+		private static class Segment {
+
+			private final Path path;
+			private final MappedByteBuffer buffer;
+			private int writePosition, readPosition;
+
+			private Segment(Path path, int size) {
+				this.path = path;
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+						StandardOpenOption.WRITE)) {
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				} catch (IOException e) {
+					throw new UncheckedIOException("SpillingQueue segment creation failure: " + path, e);
+				}
+			}
+
+			/**
+			 * The mapping itself is released once the buffer is garbage collected
+			 */
+			private void delete() {
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+					path.toFile().deleteOnExit();
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * A workload task that consumes the items of a {@link SpillingQueue}, one item
+	 * per workload. Items can be added from any thread, and the task goes idle when
+	 * the queue is empty until new items arrive.
+	 */
+	public static class SpillingWorkloadTask<T> {
+
+		private final WorkloadRunnable workloadRunnable;
+		private final SpillingQueue<T> queue;
+		private final Consumer<? super T> consumer;
+		private final AtomicBoolean draining = new AtomicBoolean();
+		private final Workload cursor = this::drain;
+
+		public SpillingWorkloadTask(WorkloadRunnable workloadRunnable, SpillingQueue<T> queue,
+				Consumer<? super T> consumer) {
+			this.workloadRunnable = workloadRunnable;
+			this.queue = queue;
+			this.consumer = consumer;
+		}
+
+		/**
+		 * @param item item to consume after every item added before it
+		 * @return this task
+		 */
+		public SpillingWorkloadTask<T> add(T item) {
+			queue.add(item);
+			if (draining.compareAndSet(false, true)) workloadRunnable.post(cursor);
+			return this;
+		}
+
+		public SpillingWorkloadTask<T> start() {
+			workloadRunnable.start();
+			return this;
+		}
+
+		public SpillingWorkloadTask<T> start(boolean bukkitAsync) {
+			if (bukkitAsync)
+				workloadRunnable.startAsync();
+			else
+				workloadRunnable.start();
+			return this;
+		}
+
+		public SpillingWorkloadTask<T> setOwner(WorkloadOwner owner) {
+			workloadRunnable.setOwner(owner);
+			return this;
+		}
+
+		/**
+		 * @param failurePolicy what happens when the consumer throws for an item,
+		 *                      {@linkplain FailurePolicy#SKIP} by default. Retries
+		 *                      aren't supported since polled items aren't kept.
+		 * @return this task
+		 */
+		public SpillingWorkloadTask<T> onFailure(FailurePolicy failurePolicy) {
+			// a stopped task posts its cursor again on the next add, once started again
+			workloadRunnable.setFailurePolicy(failurePolicy.withoutRetries(), throwable -> draining.set(false));
+			return this;
+		}
+
+		/**
+		 * Stops the task and deletes any pending items
+		 */
+		public void cancel() {
+			workloadRunnable.cancel();
+			queue.clear();
+		}
+
+		public long getPendingCount() {
+			return queue.size();
+		}
+
+		public SpillingQueue<T> getQueue() {
+			return queue;
+		}
+
+		public WorkloadRunnable getManagedRunnable() {
+			return workloadRunnable;
+		}
+
+		private boolean drain() {
+			T item = queue.poll();
+			if (item == null) {
+				draining.set(false);
+				if (queue.isEmpty() || !draining.compareAndSet(false, true)) return true;
+				item = queue.poll();
+				if (item == null) {
+					draining.set(false);
+					return true;
+				}
+			}
+			// the cursor is queued before the consumer runs, so it keeps going when the
+			// consumer throws and the failure policy skips the item
+			workloadRunnable.addWorkloadFirst(cursor);
+			consumer.accept(item);
+			return true;
+		}
+
+	}
+
+	/**
+	 * A loop over the lines of a file that never holds more than a fixed amount of
+	 * them in memory. A reader thread decodes the file through a channel into a
+	 * bounded buffer, blocking while it's full, and a cursor workload drains the
+	 * buffer within the runnable's time budget. When the cursor catches up with
+	 * the reader it leaves the runnable, which then parks, and the reader posts it
+	 * back once the next line is buffered.
+	 */
+	public static class FileLoop {
+
+		private static final int DEFAULT_BUFFERED_LINES = 1024;
+		private static final String END = new String("end of file");
+
+		private final Path path;
+		private final Charset charset;
+		private final BlockingQueue<String> buffer;
+		private final LoopFuture<String> loopFuture = new LoopFuture<>();
+		private final AtomicBoolean waiting = new AtomicBoolean();
+		private FailurePolicy failurePolicy = FailurePolicy.SKIP;
+		private volatile IOException readFailure;
+		private WorkloadRunnable workloadRunnable;
+		private Consumer<? super String> action;
+		private Thread reader;
+		private Workload cursor;
+
+		private FileLoop(@Nonnull Path path, Charset charset, int bufferedLines) {
+			if (path == null) throw new NullPointerException("FileLoop creation failure: path is null!");
+			this.path = path;
+			this.charset = charset;
+			this.buffer = new ArrayBlockingQueue<>(Math.max(1, bufferedLines));
+		}
+
+		/**
+		 * @param failurePolicy what happens when the action throws for a line,
+		 *                      {@linkplain FailurePolicy#SKIP} by default. Retries
+		 *                      aren't supported since read lines aren't kept.
+		 * @return this loop
+		 */
+		public FileLoop onFailure(FailurePolicy failurePolicy) {
+			this.failurePolicy = failurePolicy.withoutRetries();
+			return this;
+		}
+
+		/**
+		 * @param action action to perform on every line
+		 * @return LoopFuture completed with the last line, or exceptionally if the
+		 *         file can't be read
+		 */
+		public LoopFuture<String> forEach(Consumer<? super String> action) {
+			return forEach(new WorkloadRunnable(), action);
+		}
+
+		/**
+		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+		 * @param action          action to perform on every line
+		 * @return LoopFuture completed with the last line, or exceptionally if the
+		 *         file can't be read
+		 */
+		public LoopFuture<String> forEach(double maxMilliseconds, Consumer<? super String> action) {
+			return forEach(new WorkloadRunnable(maxMilliseconds), action);
+		}
+
+		private synchronized LoopFuture<String> forEach(WorkloadRunnable workloadRunnable,
+				Consumer<? super String> action) {
+			if (reader != null) throw new IllegalStateException("FileLoop start failure: the loop was already started!");
+			this.workloadRunnable = workloadRunnable;
+			this.action = action;
+			this.cursor = this::advance;
+			workloadRunnable.setProgress(loopFuture.progress);
+			workloadRunnable.setFailurePolicy(failurePolicy, this::fail);
+			waiting.set(true);
+			workloadRunnable.start();
+			reader = new Thread(this::read, "BukkitWorker-FileLoop");
+			reader.setDaemon(true);
+			reader.start();
+			return loopFuture;
+		}
+
+		/**
+		 * Stops reading the file, the loop future is completed with the last processed
+		 * line.
+		 */
+		public synchronized void cancel() {
+			if (reader == null) return;
+			reader.interrupt();
+			workloadRunnable.clearWorkloads();
+			workloadRunnable.cancel();
+			loopFuture.completableFuture.complete(loopFuture.currentElement);
+		}
+
+		private void read() {
+			try (BufferedReader lines = new BufferedReader(
+					Channels.newReader(FileChannel.open(path, StandardOpenOption.READ), charset.newDecoder(), 8192))) {
+				String line;
+				while ((line = lines.readLine()) != null) {
+					buffer.put(line);
+					if (waiting.compareAndSet(true, false)) workloadRunnable.post(cursor);
+				}
+			} catch (IOException e) {
+				readFailure = e;
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				buffer.put(END);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (waiting.compareAndSet(true, false)) workloadRunnable.post(cursor);
+		}
+
+		private boolean advance() {
+			String line = buffer.poll();
+			if (line == null) {
+				// parks until the reader posts the cursor again, unless a line came in
+				// after the poll and the reader missed the flag
+				waiting.set(true);
+				if (!buffer.isEmpty() && waiting.compareAndSet(true, false)) workloadRunnable.addWorkloadFirst(cursor);
+				return true;
+			}
+			if (line == END) {
+				workloadRunnable.cancel();
+				if (readFailure != null) {
+					loopFuture.fail(readFailure);
+				} else {
+					loopFuture.progress.finish();
+					loopFuture.completableFuture.complete(loopFuture.currentElement);
+				}
+				return true;
+			}
+			loopFuture.currentElement = line;
+			loopFuture.currentElementIndex++;
+			// the cursor is queued before the action runs, so it keeps going when the
+			// action throws and the failure policy skips the line
+			workloadRunnable.addWorkloadFirst(cursor);
+			action.accept(line);
+			return true;
+		}
+
+		private void fail(Throwable throwable) {
+			if (reader != null) reader.interrupt();
+			loopFuture.fail(throwable);
+		}
+
+	}
+
+	/**
+	 * A compact list of block changes for a single world, stored as packed
+	 * positions and material ordinals in primitive arrays. Applying it sorts the
+	 * changes by chunk section off the main thread, then sets them in time-sliced
+	 * batches that stay within one section, without physics updates.
+	 * <p>
+	 * Changes to the same position are applied in the order they were added, so
+	 * the last one wins.
+	 */
+	public static class BlockChangeBuffer {
+
+		private static final Material[] MATERIALS = Material.values();
+		private static final int CHUNK_BIAS = 1 << 21, SECTION_BIAS = 128;
+
+		private final World world;
+		private long[] keys;
+		private int[] materials;
+		private int size;
+		private int batchSize = 256;
+		private SectionListener sectionListener;
+
+		public BlockChangeBuffer(@Nonnull World world, int initialCapacity) {
+			if (world == null) throw new NullPointerException("BlockChangeBuffer creation failure: world is null!");
+			this.world = world;
+			this.keys = new long[Math.max(16, initialCapacity)];
+			this.materials = new int[keys.length];
+		}
+
+		/**
+		 * Packs a position so that sorting the keys groups them by chunk, then by
+		 * section, then by position within the section.
+		 */
+		private static long pack(int x, int y, int z) {
+			return ((long) ((x >> 4) + CHUNK_BIAS) << 42) | ((long) ((z >> 4) + CHUNK_BIAS) << 20)
+					| ((long) ((y >> 4) + SECTION_BIAS) << 12) | ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+		}
+
+		private static long sectionOf(long key) {
+			return key >>> 12;
+		}
+
+		public BlockChangeBuffer add(int x, int y, int z, Material material) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				materials = Arrays.copyOf(materials, size * 2);
+			}
+			keys[size] = pack(x, y, z);
+			materials[size++] = material.ordinal();
+			return this;
+		}
+
+		/**
+		 * @param batchSize maximum changes applied per workload, 256 by default
+		 * @return this buffer
+		 */
+		public BlockChangeBuffer setBatchSize(int batchSize) {
+			this.batchSize = Math.max(1, batchSize);
+			return this;
+		}
+
+		/**
+		 * @param sectionListener called once all changes of a chunk section are
+		 *                        applied, e.g to update lighting or resend the chunk
+		 * @return this buffer
+		 */
+		public BlockChangeBuffer onSectionApplied(SectionListener sectionListener) {
+			this.sectionListener = sectionListener;
+			return this;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public World getWorld() {
+			return world;
+		}
+
+		/**
+		 * Sorts the changes asynchronously, then applies them in the main thread
+		 * 
+		 * @return LoopFuture completed with the amount of applied changes
+		 */
+		public LoopFuture<Integer> apply() {
+			return apply(new WorkloadRunnable());
+		}
+
+		/**
+		 * @param maxMilliseconds {@link BukkitWorker#prepareTask(double)}
+		 * @return LoopFuture completed with the amount of applied changes
+		 */
+		public LoopFuture<Integer> apply(double maxMilliseconds) {
+			return apply(new WorkloadRunnable(maxMilliseconds));
+		}
+
+		private LoopFuture<Integer> apply(WorkloadRunnable workloadRunnable) {
+			LoopFuture<Integer> loopFuture = new LoopFuture<>();
+			if (size == 0) return loopFuture.forceComplete(0);
+			loopFuture.progress.setTotal(size);
+			workloadRunnable.setFailurePolicy(FailurePolicy.FAIL_LOOP, loopFuture::fail);
+			long[] sortedKeys = Arrays.copyOf(keys, size);
+			int[] sortedMaterials = Arrays.copyOf(materials, size);
+			workloadRunnable.start();
+			scheduler.runTaskAsynchronously(() -> {
+				radixSort(sortedKeys, sortedMaterials);
+				workloadRunnable.post(new BlockChangeApplier(this, workloadRunnable, loopFuture, sortedKeys,
+						sortedMaterials));
+			});
+			return loopFuture;
+		}
+
+		/**
+		 * Stable unsigned LSD radix sort of the keys, carrying the materials along.
+		 * Bytes that are the same for every key are skipped.
+		 */
+		private static void radixSort(long[] keys, int[] materials) {
+			int length = keys.length;
+			long[] keyBuffer = new long[length];
+			int[] materialBuffer = new int[length];
+			int[] counts = new int[256];
+			for (int shift = 0; shift < 64; shift += 8) {
+				Arrays.fill(counts, 0);
+				for (long key : keys) counts[(int) (key >>> shift) & 0xFF]++;
+				if (counts[(int) (keys[0] >>> shift) & 0xFF] == length) continue;
+				for (int i = 1; i < 256; i++) counts[i] += counts[i - 1];
+				for (int i = length - 1; i >= 0; i--) {
+					int index = --counts[(int) (keys[i] >>> shift) & 0xFF];
+					keyBuffer[index] = keys[i];
+					materialBuffer[index] = materials[i];
+				}
+				System.arraycopy(keyBuffer, 0, keys, 0, length);
+				System.arraycopy(materialBuffer, 0, materials, 0, length);
+			}
+		}
+
+	}
+
+	@FunctionalInterface
+	public interface SectionListener {
+
+		/**
+		 * @param world    world of the section
+		 * @param chunkX   x of the section's chunk
+		 * @param sectionY y of the section, block y divided by 16
+		 * @param chunkZ   z of the section's chunk
+		 */
+		void sectionApplied(World world, int chunkX, int sectionY, int chunkZ);
+
+	}
+
+	private static class BlockChangeApplier implements Workload {
+
+		private final BlockChangeBuffer buffer;
+		private final WorkloadRunnable workloadRunnable;
+		private final LoopFuture<Integer> loopFuture;
+		private final long[] keys;
+		private final int[] materials;
+		private int position;
+
+		private BlockChangeApplier(BlockChangeBuffer buffer, WorkloadRunnable workloadRunnable,
+				LoopFuture<Integer> loopFuture, long[] keys, int[] materials) {
+			this.buffer = buffer;
+			this.workloadRunnable = workloadRunnable;
+			this.loopFuture = loopFuture;
+			this.keys = keys;
+			this.materials = materials;
+		}
+
+		@Override
+		public boolean compute() {
+			long section = BlockChangeBuffer.sectionOf(keys[position]);
+			int chunkX = (int) (section >>> 30) - BlockChangeBuffer.CHUNK_BIAS;
+			int chunkZ = (int) ((section >>> 8) & 0x3FFFFF) - BlockChangeBuffer.CHUNK_BIAS;
+			int sectionY = (int) (section & 0xFF) - BlockChangeBuffer.SECTION_BIAS;
+			Chunk chunk = buffer.world.getChunkAt(chunkX, chunkZ);
+			int baseY = sectionY << 4;
+			int end = Math.min(keys.length, position + buffer.batchSize);
+			while (position < end && BlockChangeBuffer.sectionOf(keys[position]) == section) {
+				long key = keys[position];
+				chunk.getBlock((int) key & 15, baseY + ((int) (key >>> 8) & 15), (int) (key >>> 4) & 15)
+						.setType(BlockChangeBuffer.MATERIALS[materials[position]], false);
+				position++;
+			}
+			loopFuture.progress.record(position - loopFuture.currentElementIndex, scheduler.nanoTime());
+			loopFuture.currentElementIndex = position;
+			boolean sectionDone = position == keys.length || BlockChangeBuffer.sectionOf(keys[position]) != section;
+			if (sectionDone && buffer.sectionListener != null)
+				buffer.sectionListener.sectionApplied(buffer.world, chunkX, sectionY, chunkZ);
+			if (position < keys.length) {
+				workloadRunnable.addWorkloadFirst(this);
+				return true;
+			}
+			workloadRunnable.cancel();
+			loopFuture.progress.finish();
+			loopFuture.completableFuture.complete(position);
+			return true;
+		}
+
+	}
+
+	public static class WorkloadTask {
+
+		private WorkloadRunnable workloadRunnable;
+		private boolean cancelled;
+
+		public WorkloadTask(WorkloadRunnable workloadRunnable) {
+			this.workloadRunnable = workloadRunnable;
+		}
+
+		public WorkloadTask start() {
+			workloadRunnable.start();
+			return this;
+		}
+
+		/**
+		 * Starts the task in idle time mode, see
+		 * {@linkplain WorkloadRunnable#startIdle()}.
+		 * 
+		 * @return this workload task
+		 */
+		public WorkloadTask startIdle() {
+			workloadRunnable.startIdle();
+			return this;
+		}
+
+		public WorkloadTask start(boolean bukkitAsync) {
+			if (bukkitAsync)
+				workloadRunnable.startAsync();
+			else
+				workloadRunnable.start();
+			return this;
+		}
+
+		public WorkloadTask addWorkload(Runnable runnable) {
+			workloadRunnable.addWorkload(new RunnableWorkload(runnable));
+			return this;
+		}
+
+		public <T> WorkloadTask addWorkload(T t, Consumer<T> consumer) {
+			workloadRunnable.addPooledWorkload(t, consumer);
+			return this;
+		}
+
+		/**
+		 * @param cost cost of the workload towards the task's rate limit
+		 * @return this workload task
+		 */
+		public <T> WorkloadTask addWorkload(T t, Consumer<T> consumer, int cost) {
+			workloadRunnable.addWorkload(new WeightedWorkload(new ConsumerWorkload<T>(t, consumer), cost));
+			return this;
+		}
+
+		public WorkloadTask addWorkload(int i, IntConsumer intConsumer) {
+			workloadRunnable.addPooledWorkload(i, intConsumer);
+			return this;
+		}
+
+		public <T> WorkloadTask addWorkload(Supplier<T> supplier) {
+			workloadRunnable.addWorkload(new SupplierWorkload<T>(supplier).queued());
+			return this;
+		}
+
+		/**
+		 * Posts a runnable to this task's mailbox, safe to call from any thread.
+		 * 
+		 * @param runnable code to run () ->
+		 * @return this workload task
+		 */
+		public WorkloadTask post(Runnable runnable) {
+			workloadRunnable.post(new RunnableWorkload(runnable));
+			return this;
+		}
+
+		public WorkloadTask addCancellerWorkload() {
+			workloadRunnable.addWorkload(new CancelWorkload());
+			return this;
+		}
+
+		public void cancel() {
+			workloadRunnable.cancel();
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Removes all added workloads
+		 */
+		public void clearAll() {
+			workloadRunnable.clearWorkloads();
+		}
+
+		public WorkloadTask setOwner(WorkloadOwner owner) {
+			workloadRunnable.setOwner(owner);
+			return this;
+		}
+
+		public WorkloadTask setRateLimit(RateLimit rateLimit) {
+			workloadRunnable.setRateLimit(rateLimit);
+			return this;
+		}
+
+		/**
+		 * @param deadlineMillis milliseconds from now the task should be done in, see
+		 *                       {@linkplain WorkloadRunnable#setDeadline(long)}
+		 * @return this workload task
+		 */
+		public WorkloadTask setDeadline(long deadlineMillis) {
+			workloadRunnable.setDeadline(deadlineMillis);
+			return this;
+		}
+
+		public WorkloadRunnable getManagedRunnable() {
+			return workloadRunnable;
+		}
+
+		public boolean hasWorkloads() {
+			return !workloadRunnable.isEmpty();
+		}
+
 	}
 
-	/**
-	 * Consumes the specified {@code consumer} in the main workload, which means
-	 * that
-	 * any consumer that will be consumed, will wait for the previous actions that
-	 * are also
-	 * run in the main workload to finish before execution.
-	 * 
-	 * @param consumer consumer to consume c ->
-	 * @param object   object to include
-	 */
-	public static <T> void consume(Consumer<? super T> consumer, T object) {
-		MAIN_WORKLOAD_RUNNABLE.addWorkload(new ConsumerWorkload<T>(object, consumer));
-	}
+	public static class WorkloadRunnable implements Runnable {
+
+		private static final double MAX_MILLIS_PER_TICK = 2.5;
+
+		private int maxNanosPerTick = (int) (MAX_MILLIS_PER_TICK * 1E6);
+
+		private final Deque<Workload> workloadDeque;
+
+		/**
+		 * Lock-free queue for workloads handed off from other threads, drained at the
+		 * start of every run before the deque.
+		 */
+		private final Queue<Workload> mailbox = new ConcurrentLinkedQueue<>();
+
+		private volatile ScheduledTask scheduledTask;
+
+		private WorkloadPool workloadPool;
+
+		private volatile WorkloadOwner owner = defaultOwner;
+
+		private RateLimit rateLimit;
+
+		private LoopProgress progress;
+
+		private static final AtomicInteger IDS = new AtomicInteger();
+
+		private final int id = IDS.incrementAndGet();
+
+		/**
+		 * Workload being computed and since when, only written while a watchdog is
+		 * running. Uses the real clock since the watchdog samples it from its own
+		 * thread.
+		 */
+		private volatile Workload executing;
+		private volatile long executingSince;
+		private volatile Thread executingThread;
+		private volatile boolean quarantined;
+		private volatile Workload dropped;
+		private boolean watched, shared;
+
+		/**
+		 * Ring of the thread running the current slice and start of the workload
+		 * being computed, only set while a trace is recorded
+		 */
+		private TraceRing traceRing;
+		private long traceStart;
+
+		/**
+		 * How the runnable was started, kept to schedule it again after parking. Null
+		 * when it isn't started or was cancelled.
+		 */
+		private Supplier<ScheduledTask> scheduling;
+		private final AtomicBoolean parked = new AtomicBoolean();
+
+		private FailurePolicy failurePolicy = FailurePolicy.SKIP;
+		private Consumer<Throwable> failureHandler;
+		private long failures, retried;
+		private Throwable lastFailure;
+
+		/**
+		 * Clock time the runnable should be done by, 0 for best effort
+		 */
+		private long deadline;
+		private long lastComputed;
+		private Deadlines.DeadlineTask deadlineTask;
+
+		public WorkloadRunnable() {
+			workloadDeque = new ArrayDeque<>();
+		}
+
+		public WorkloadRunnable(double maxMillisecondsPerTick) {
+			workloadDeque = new ArrayDeque<>();
+			maxNanosPerTick = (int) (maxMillisecondsPerTick * 1E6);
+		}
+
+		/**
+		 * @param owner owner whose quota limits this runnable, or null for no limit
+		 *              other than the runnable's own time budget
+		 */
+		public void setOwner(WorkloadOwner owner) {
+			this.owner = owner;
+		}
+
+		public WorkloadOwner getOwner() {
+			return owner;
+		}
+
+		/**
+		 * @param rateLimit limits how many workloads run per tick or second on top of
+		 *                  the time budget, or null for no limit. Workloads handed
+		 *                  off through the mailbox aren't limited.
+		 */
+		public void setRateLimit(RateLimit rateLimit) {
+			this.rateLimit = rateLimit;
+		}
+
+		public RateLimit getRateLimit() {
+			return rateLimit;
+		}
+
+		/**
+		 * @param failurePolicy what happens when a workload throws,
+		 *                      {@linkplain FailurePolicy#SKIP} by default
+		 */
+		public void setFailurePolicy(FailurePolicy failurePolicy) {
+			setFailurePolicy(failurePolicy, null);
+		}
+
+		/**
+		 * @param failurePolicy  what happens when a workload throws
+		 * @param failureHandler called with the exception when the policy stops the
+		 *                       runnable, e.g to fail the loop's future
+		 */
+		public void setFailurePolicy(FailurePolicy failurePolicy, Consumer<Throwable> failureHandler) {
+			this.failurePolicy = failurePolicy == null ? FailurePolicy.SKIP : failurePolicy;
+			this.failureHandler = failureHandler;
+		}
+
+		/**
+		 * @return how many times a workload of this runnable threw
+		 */
+		public long getFailureCount() {
+			return failures;
+		}
+
+		/**
+		 * @return how many failed workloads were scheduled for a retry
+		 */
+		public long getRetryCount() {
+			return retried;
+		}
+
+		public Throwable getLastFailure() {
+			return lastFailure;
+		}
+
+		/**
+		 * Gives the runnable a target completion time. Once started on the main thread
+		 * it's run by the deadline scheduler instead of its own timer, which splits a
+		 * shared budget between deadline runnables, earliest deadline first, based on
+		 * how much work each has left. See
+		 * {@linkplain BukkitWorker#setDeadlineBudget(double)}.
+		 * 
+		 * @param deadlineMillis milliseconds from now the runnable should be done in,
+		 *                       0 or less for best effort
+		 */
+		public void setDeadline(long deadlineMillis) {
+			deadline = deadlineMillis <= 0 ? 0 : scheduler.nanoTime() + deadlineMillis * 1_000_000L;
+			if (deadlineTask != null) deadlineTask.missReported = false;
+		}
+
+		/**
+		 * @return workloads left, from the progress total when it's known since a
+		 *         cursor workload stands for many elements
+		 */
+		private long remainingWorkloads() {
+			LoopProgress progress = this.progress;
+			if (progress != null && progress.getTotal() >= 0) return progress.getTotal() - progress.getDone();
+			return workloadDeque.size();
+		}
+
+		/**
+		 * @param progress progress to record computed workloads to, once per run
+		 */
+		public void setProgress(LoopProgress progress) {
+			this.progress = progress;
+		}
+
+		/**
+		 * Not thread safe, workloads from other threads should be handed off using
+		 * {@linkplain #post(Workload)}.
+		 * 
+		 * @param workload workload to add
+		 */
+		public void addWorkload(Workload workload) {
+			this.workloadDeque.add(workload);
+			if (parked.get()) wake();
+		}
+
+		/**
+		 * Hands off a workload from any thread. Posted workloads are run before the
+		 * ones added through {@linkplain #addWorkload(Workload)} and share the same
+		 * time budget.
+		 * 
+		 * @param workload workload to post
+		 */
+		public void post(Workload workload) {
+			TraceRecorder tracer = BukkitWorker.tracer;
+			if (tracer != null) tracer.ring().record(TraceRecorder.ENQUEUE, id, ownerId(), System.nanoTime(), 0);
+			mailbox.offer(workload);
+			if (parked.get()) wake();
+		}
+
+		/**
+		 * Adds a workload to the head of the deque, so it runs before any other
+		 * pending workload.
+		 * 
+		 * @param workload workload to add
+		 */
+		public void addWorkloadFirst(Workload workload) {
+			this.workloadDeque.addFirst(workload);
+			if (parked.get()) wake();
+		}
+
+		/**
+		 * Adds a consumer workload taken from this runnable's pool, the workload is
+		 * returned to the pool once computed.
+		 * 
+		 * @param t        object to consume
+		 * @param consumer consumer to consume the object with
+		 */
+		public <T> void addPooledWorkload(T t, Consumer<? super T> consumer) {
+			this.workloadDeque.add(getWorkloadPool().consumer(t, consumer));
+			if (parked.get()) wake();
+		}
+
+		/**
+		 * Adds an int workload taken from this runnable's pool, the workload is
+		 * returned to the pool once computed.
+		 * 
+		 * @param i           int to consume
+		 * @param intConsumer consumer to consume the int with
+		 */
+		public void addPooledWorkload(int i, IntConsumer intConsumer) {
+			this.workloadDeque.add(getWorkloadPool().intWorkload(i, intConsumer));
+			if (parked.get()) wake();
+		}
+
+		private WorkloadPool getWorkloadPool() {
+			if (workloadPool == null) workloadPool = new WorkloadPool();
+			return workloadPool;
+		}
+
+		public <T> SupplierWorkload<T> addSupplierWorkload(SupplierWorkload<T> workload) {
+			this.workloadDeque.add(workload);
+			if (parked.get()) wake();
+			return workload;
+		}
+
+		/**
+		 * Starts the runnable, does nothing if it's already running, so a runnable can
+		 * be recycled after being cancelled.
+		 */
+		public void start() {
+			schedule(() -> deadline != 0 ? Deadlines.schedule(this) : scheduler.runTaskTimer(this, 1, 1));
+		}
+
+		public void startAsync() {
+			schedule(() -> scheduler.runTaskTimerAsynchronously(this, 1, 1));
+		}
+
+		/**
+		 * Starts the runnable on the thread that owns the lane, which is the main
+		 * thread unless the scheduler is regionized.
+		 * 
+		 * @param lane lane to run in
+		 */
+		public void startInLane(LaneKey lane) {
+			schedule(() -> scheduler.runLaneTimer(lane, this, 1, 1));
+		}
+
+		/**
+		 * Starts the runnable in idle time mode, it then runs at the end of every tick
+		 * using only the time left before the tick's deadline, instead of adding its
+		 * budget to the tick. See {@linkplain BukkitWorker#setIdleTimeLimits(double, double)}.
+		 */
+		public void startIdle() {
+			schedule(() -> IdleTime.schedule(this));
+		}
+
+		private synchronized void schedule(Supplier<ScheduledTask> scheduling) {
+			if (isRunning()) return;
+			this.scheduling = scheduling;
+			scheduledTask = scheduling.get();
+		}
+
+		/**
+		 * @return true if the runnable is started, including while it's parked with
+		 *         nothing to run
+		 */
+		public boolean isRunning() {
+			if (parked.get()) return true;
+			ScheduledTask task = scheduledTask;
+			return task != null && !task.isCancelled();
+		}
+
+		/**
+		 * @return true if the runnable unscheduled itself because it ran out of
+		 *         workloads, it's scheduled again as soon as a workload is added
+		 */
+		public boolean isParked() {
+			return parked.get();
+		}
+
+		public synchronized void cancel() {
+			scheduling = null;
+			parked.set(false);
+			ScheduledTask task = scheduledTask;
+			if (task != null) task.cancel();
+		}
+
+		/**
+		 * Unschedules the runnable once its queues are drained. The queues are checked
+		 * again after parking, so a workload handed off in between either sees the
+		 * runnable parked and wakes it, or is seen here.
+		 */
+		private void park() {
+			synchronized (this) {
+				if (scheduling == null) return;
+				ScheduledTask task = scheduledTask;
+				if (task != null) task.cancel();
+				parked.set(true);
+			}
+			if (!isEmpty()) wake();
+		}
+
+		private void wake() {
+			if (!parked.compareAndSet(true, false)) return;
+			synchronized (this) {
+				if (scheduling != null) scheduledTask = scheduling.get();
+			}
+		}
+
+		public void run(Runnable runnable) {
+			addWorkload(new RunnableWorkload(runnable));
+		}
+
+		public void clearWorkloads() {
+			workloadDeque.clear();
+			mailbox.clear();
+		}
+
+		public boolean isEmpty() {
+			return workloadDeque.isEmpty() && mailbox.isEmpty();
+		}
+
+		/**
+		 * @return id of this runnable, shown in watchdog reports
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @return true if the watchdog quarantined this runnable, it then skips every
+		 *         run until {@linkplain #release()} is called
+		 */
+		public boolean isQuarantined() {
+			return quarantined;
+		}
+
+		/**
+		 * Lifts the watchdog's quarantine, the runnable has to be started again.
+		 */
+		public void release() {
+			quarantined = false;
+		}
+
+		private WorkloadRunnable shared() {
+			shared = true;
+			return this;
+		}
 
-	/**
-	 * Supplies the specified {@code supplier} in the main workload, which means
-	 * that
-	 * any object that will be received from the supplier, will wait for the
-	 * previous actions and suppliers that are also
-	 * run and retrieved in the main workload to finish before execution.
-	 * 
-	 * @param supplier object to supply () -> object
-	 */
-	public static <T> SupplierWorkload<T> supply(Supplier<T> supplier) {
-		return MAIN_WORKLOAD_RUNNABLE.addSupplierWorkload(new SupplierWorkload<T>(supplier));
-	}
+		/**
+		 * @return false for runnables that other work depends on, the main workload,
+		 *         lanes and the ones run by the idle time or deadline coordinators
+		 */
+		private boolean isQuarantinable() {
+			ScheduledTask task = scheduledTask;
+			return !shared && !(task instanceof IdleTime.IdleTask) && !(task instanceof Deadlines.DeadlineTask);
+		}
 
-	/**
-	 * Runs the specified {@code runnable} in a new workload, this means it won't
-	 * wait for an action to finish unless it is run in the same workload using
-	 * {@linkplain #runContinue(int, Runnable)}. This shouldn't be spammed, but
-	 * rather should be used when starting a heavy task. After that, the task should
-	 * be continued using runContinue
-	 * 
-	 * @param runnable code to run () ->
-	 * @return workload id, for further usage in runContinue
-	 */
-	public static int runNew(Runnable runnable) {
-		WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-		int id = WORKLOADS.size();
-		workloadRunnable.addWorkload(new RunnableWorkload(runnable));
-		workloadRunnable.start();
-		WORKLOADS.put(id, workloadRunnable);
-		return id;
-	}
+		/**
+		 * Stops the runnable through the failure path, so its loop future and pending
+		 * supplier workloads complete instead of waiting forever.
+		 */
+		private void quarantine(Workload workload) {
+			IllegalStateException exception = new IllegalStateException("Runnable #" + id
+					+ " was quarantined by the watchdog, workload "
+					+ (workload == null ? "?" : workload.source().getClass().getName()) + " got stuck");
+			failures++;
+			lastFailure = exception;
+			FAILURES.incrementAndGet();
+			cancel();
+			for (Workload pending : workloadDeque) abandon(pending, exception);
+			for (Workload pending : mailbox) abandon(pending, exception);
+			clearWorkloads();
+			if (failureHandler != null) failureHandler.accept(exception);
+		}
 
-	/**
-	 * Runs the specified {@code runnable} in a new workload, this means it won't
-	 * wait for an action to finish unless it is run in the same workload using
-	 * {@linkplain #runContinue(int, Runnable)}. This shouldn't be spammed, but
-	 * rather should be used when starting a heavy task. After that, the task should
-	 * be continued using runContinue
-	 * 
-	 * @param runnable        code to run () ->
-	 * @param maxMilliseconds how long can a tick last by default it's set to 2.5.
-	 *                        The value must be between 1.0 and 50.0 for a
-	 *                        beneficial effect. The higher the faster the more
-	 *                        server resources consumed.
-	 * @return workload id, for further usage in runContinue
-	 */
-	public static int runNew(double maxMilliseconds, Runnable runnable) {
-		WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-		int id = WORKLOADS.size();
-		workloadRunnable.addWorkload(new RunnableWorkload(runnable));
-		workloadRunnable.start();
-		WORKLOADS.put(id, workloadRunnable);
-		return id;
-	}
+		private static void abandon(Workload workload, Throwable exception) {
+			Object source = workload.source();
+			if (source instanceof SupplierWorkload) ((SupplierWorkload<?>) source).future.completeExceptionally(exception);
+		}
+
+		/**
+		 * @return false if the runnable got quarantined, the workload is then dropped
+		 */
+		private boolean track(Workload workload) {
+			if (quarantined) return false;
+			long now = System.nanoTime();
+			TraceRing ring = traceRing;
+			if (ring != null) {
+				// a workload ends when the next one starts, so one clock read covers both
+				if (traceStart != 0) ring.record(TraceRecorder.WORKLOAD, id, ownerId(), traceStart, now - traceStart);
+				traceStart = now;
+			}
+			if (watched) {
+				executingSince = now;
+				executing = workload;
+			}
+			return true;
+		}
+
+		private int ownerId() {
+			WorkloadOwner owner = this.owner;
+			return owner == null ? 0 : owner.id;
+		}
+
+		@Override
+		public void run() {
+			runSlice(maxNanosPerTick);
+		}
+
+		/**
+		 * Runs pending workloads until they're done or the budget is used up
+		 * 
+		 * @param budgetNanos nanoseconds this run may last, the owner's quota can
+		 *                    shorten it
+		 */
+		public void runSlice(long budgetNanos) {
+			if (quarantined) return;
+			Watchdog watchdog = BukkitWorker.watchdog;
+			TraceRecorder tracer = BukkitWorker.tracer;
+			if (watchdog == null && tracer == null) {
+				runWorkloads(budgetNanos, false);
+				if (isEmpty()) park();
+				return;
+			}
+			long sliceStart = System.nanoTime();
+			traceRing = tracer == null ? null : tracer.ring();
+			traceStart = 0;
+			watched = watchdog != null;
+			if (watched) {
+				executingThread = Thread.currentThread();
+				watchdog.runnables.add(this);
+			}
+			try {
+				runWorkloads(budgetNanos, true);
+			} finally {
+				TraceRing ring = traceRing;
+				if (ring != null) {
+					long now = System.nanoTime();
+					if (traceStart != 0) ring.record(TraceRecorder.WORKLOAD, id, ownerId(), traceStart, now - traceStart);
+					ring.record(TraceRecorder.SLICE, id, ownerId(), sliceStart, now - sliceStart);
+					traceRing = null;
+				}
+				if (watched) {
+					Workload stuck = executing;
+					executing = null;
+					dropped = null;
+					watchdog.runnables.remove(this);
+					if (quarantined) quarantine(stuck);
+				}
+			}
+			if (isEmpty()) park();
+		}
+
+		/**
+		 * Applies the failure policy to a workload that threw
+		 * 
+		 * @return true if the workload is kept for a retry, so it must not be recycled
+		 */
+		private boolean fail(Workload workload, Throwable exception) {
+			failures++;
+			lastFailure = exception;
+			FAILURES.incrementAndGet();
+			FailurePolicy policy = failurePolicy;
+			int attempt = workload instanceof RetryWorkload ? ((RetryWorkload) workload).attempt : 0;
+			if (attempt < policy.maxRetries && workload != dropped) {
+				RetryWorkload retry = workload instanceof RetryWorkload ? (RetryWorkload) workload
+						: new RetryWorkload(workload);
+				retry.attempt = attempt + 1;
+				retry.dueTime = scheduler.nanoTime() + policy.backoffTicks * NANOS_PER_TICK;
+				// the retry blocks the deque until it's due, so later workloads keep their order
+				workloadDeque.addFirst(retry);
+				retried++;
+				return true;
+			}
+			if (failures == 1 || policy.failLoop) scheduler.getLogger().log(Level.WARNING,
+					"Workload " + workload.source().getClass().getName() + " of runnable #" + id + " failed"
+							+ (policy.failLoop ? ", stopping it" : ", skipping it (further failures are only counted)"),
+					exception);
+			if (!policy.failLoop) return false;
+			cancel();
+			clearWorkloads();
+			if (failureHandler != null) failureHandler.accept(exception);
+			return false;
+		}
+
+		private void runWorkloads(long budgetNanos, boolean tracked) {
+			TaskScheduler clock = scheduler;
+			WorkloadOwner owner = this.owner;
+			long startTime = clock.nanoTime();
+			long budget = budgetNanos;
+			lastComputed = 0;
+			if (owner != null && (budget = owner.acquire(budget, startTime)) <= 0) return;
+			long stopTime = startTime + budget;
+
+			Workload nextLoad;
+
+			while (clock.nanoTime() <= stopTime && (nextLoad = this.mailbox.poll()) != null
+					&& (!tracked || track(nextLoad))) {
+				try {
+					if (!nextLoad.compute()) cancel();
+				} catch (Throwable e) {
+					fail(nextLoad, e);
+				}
+			}
+
+			RateLimit rateLimit = this.rateLimit;
+			long computed = 0;
+			if (rateLimit == null) {
+				while (clock.nanoTime() <= stopTime && (nextLoad = this.workloadDeque.poll()) != null
+						&& (!tracked || track(nextLoad))) {
+					if (nextLoad instanceof RetryWorkload && !((RetryWorkload) nextLoad).isDue(clock)) {
+						workloadDeque.addFirst(nextLoad);
+						break;
+					}
+					try {
+						if (!nextLoad.compute()) cancel();
+					} catch (Throwable e) {
+						if (fail(nextLoad, e)) continue;
+					}
+					nextLoad.recycle();
+					computed++;
+				}
+			} else {
+				rateLimit.refill(startTime);
+				while (clock.nanoTime() <= stopTime && rateLimit.hasCapacity()
+						&& (nextLoad = this.workloadDeque.poll()) != null && (!tracked || track(nextLoad))) {
+					if (nextLoad instanceof RetryWorkload && !((RetryWorkload) nextLoad).isDue(clock)) {
+						workloadDeque.addFirst(nextLoad);
+						break;
+					}
+					rateLimit.consume(nextLoad.cost());
+					try {
+						if (!nextLoad.compute()) cancel();
+					} catch (Throwable e) {
+						if (fail(nextLoad, e)) continue;
+					}
+					nextLoad.recycle();
+					computed++;
+				}
+			}
+
+			lastComputed = computed;
+			if (owner != null || progress != null) {
+				long endTime = clock.nanoTime();
+				if (owner != null) owner.charge(endTime - startTime, endTime);
+				if (progress != null && computed > 0) progress.record(computed, endTime);
+			}
+		}
 
-	/**
-	 * Runs the specified {@code runnable} in a new workload, this means it won't
-	 * wait for an action to finish unless it is run in the same workload using
-	 * {@linkplain #runContinue(int, Runnable)}. This shouldn't be spammed, but
-	 * rather should be used when starting a heavy task. After that, the task should
-	 * be continued using runContinue
-	 * 
-	 * @param runnable        code to run () ->
-	 * @param maxMilliseconds how long can a tick last by default it's set to 2.5.
-	 *                        The value must be between 1.0 and 50.0 for a
-	 *                        beneficial effect. The higher the faster the more
-	 *                        server resources consumed.
-	 * @param id              a reference for the workload, so it can be accessed
-	 *                        again
-	 * @return the given workload id, for further usage in runContinue
-	 */
-	public static int runNew(int id, double maxMilliseconds, Runnable runnable) {
-		WorkloadRunnable workloadRunnable = new WorkloadRunnable(maxMilliseconds);
-		workloadRunnable.addWorkload(new RunnableWorkload(runnable));
-		workloadRunnable.start();
-		WORKLOADS.put(id, workloadRunnable);
-		return id;
 	}
 
 	/**
-	 * Continue using a workload by adding a task to it
-	 * 
-	 * @param id       id of a workload
-	 * @param runnable code to run () ->
-	 * @return specified workload id after workload addition
+	 * Runs idle time runnables at the end of each tick, one after another in a
+	 * rotating order, until the time left before the tick's deadline, minus a
+	 * safety margin, is used up. When the scheduler can't detect the end of a
+	 * tick, they run at the start of the next tick with a fixed budget that drops
+	 * to nothing while the server is lagging behind.
 	 */
-	public static int runContinue(int id, Runnable runnable) {
-		WORKLOADS.get(id).addWorkload(new RunnableWorkload(runnable));
-		return id;
+	private static class IdleTime {
+
+		private static final List<IdleTask> TASKS = new CopyOnWriteArrayList<>();
+		private static volatile long safetyMarginNanos = 2_000_000L, fallbackNanos = 2_500_000L;
+		private static TaskScheduler hookedScheduler;
+		private static ScheduledTask fallbackTask;
+		private static long lastTickStart;
+		private static int next;
+
+		private static synchronized ScheduledTask schedule(WorkloadRunnable workloadRunnable) {
+			IdleTask task = new IdleTask(workloadRunnable);
+			TASKS.add(task);
+			TaskScheduler taskScheduler = scheduler;
+			if (hookedScheduler != taskScheduler) {
+				hookedScheduler = taskScheduler;
+				if (fallbackTask != null) fallbackTask.cancel();
+				fallbackTask = null;
+				if (!taskScheduler.registerTickEndHook(remainingNanos -> {
+					if (hookedScheduler == taskScheduler) runIdle(remainingNanos - safetyMarginNanos);
+				})) fallbackTask = taskScheduler.runTaskTimer(IdleTime::runFallback, 1, 1);
+			}
+			return task;
+		}
+
+		private static void runFallback() {
+			long now = scheduler.nanoTime();
+			long interval = now - lastTickStart;
+			boolean lagging = lastTickStart != 0 && interval > NANOS_PER_TICK + safetyMarginNanos;
+			lastTickStart = now;
+			if (!lagging) runIdle(fallbackNanos);
+		}
+
+		private static void runIdle(long budgetNanos) {
+			if (budgetNanos <= 0 || TASKS.isEmpty()) return;
+			Object[] tasks = TASKS.toArray();
+			if (tasks.length == 0) return;
+			TaskScheduler clock = scheduler;
+			long stopTime = clock.nanoTime() + budgetNanos;
+			int first = next++ % tasks.length;
+			for (int i = 0; i < tasks.length; i++) {
+				long remaining = stopTime - clock.nanoTime();
+				if (remaining <= 0) return;
+				IdleTask task = (IdleTask) tasks[(first + i) % tasks.length];
+				if (!task.cancelled) task.workloadRunnable.runSlice(remaining);
+			}
+		}
+
+		private static class IdleTask implements ScheduledTask {
+
+			private final WorkloadRunnable workloadRunnable;
+			private volatile boolean cancelled;
+
+			private IdleTask(WorkloadRunnable workloadRunnable) {
+				this.workloadRunnable = workloadRunnable;
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				TASKS.remove(this);
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return cancelled;
+			}
+
+		}
+
 	}
 
 	/**
-	 * Creates a workload task without starting it and without workloads.
-	 * 
-	 * @return workload task that manages workloads
+	 * What a runnable does when one of its workloads throws. The exception never
+	 * leaves the run, so a failing workload doesn't cost the rest of the tick's
+	 * budget.
+	 * <p>
+	 * {@code FailurePolicy.retry(3, 20, true)}
 	 */
-	public static WorkloadTask prepareTask() {
-		return new WorkloadTask(new WorkloadRunnable());
+	public static class FailurePolicy {
+
+		/**
+		 * Logs the first failure, counts the rest and continues with the next workload
+		 */
+		public static final FailurePolicy SKIP = new FailurePolicy(false, 0, 0);
+
+		/**
+		 * Cancels the runnable, drops its pending workloads and fails the loop's
+		 * future exceptionally
+		 */
+		public static final FailurePolicy FAIL_LOOP = new FailurePolicy(true, 0, 0);
+
+		private final boolean failLoop;
+		private final int maxRetries;
+		private final long backoffTicks;
+
+		private FailurePolicy(boolean failLoop, int maxRetries, long backoffTicks) {
+			this.failLoop = failLoop;
+			this.maxRetries = maxRetries;
+			this.backoffTicks = backoffTicks;
+		}
+
+		/**
+		 * @param maxRetries   how many times a failed workload is computed again
+		 * @param backoffTicks ticks to wait before each retry, the runnable's later
+		 *                     workloads wait as well so their order is kept
+		 * @param failLoop     whether the loop fails once the retries are used up,
+		 *                     otherwise the workload is skipped
+		 * @return the failure policy
+		 */
+		public static FailurePolicy retry(int maxRetries, int backoffTicks, boolean failLoop) {
+			return new FailurePolicy(failLoop, maxRetries, Math.max(0, backoffTicks));
+		}
+
+		private FailurePolicy withoutRetries() {
+			return maxRetries == 0 ? this : failLoop ? FAIL_LOOP : SKIP;
+		}
+
 	}
 
 	/**
-	 * Creates a workload task without starting it and without workloads. In
-	 * addition, it sets the maximum milliseconds a tick can last. It's set to 2.5
-	 * by default, which is about 5% of a tick since a tick is 50 milliseconds.
-	 * 
-	 * @param maxMillisecondsPerTick how many milliseconds a tick can last,
-	 *                               increasing this value will speed up the task in
-	 *                               return of decreasing the tps by a little
-	 * @return workload task that manages workloads
+	 * Runs runnables that have a deadline from a single main thread timer. Every
+	 * tick, each runnable's remaining time is estimated from its remaining
+	 * workloads and its measured time per workload, then the budget is granted in
+	 * earliest deadline first order: first what each runnable needs per tick to
+	 * finish in time, then the rest to runnables that will miss their deadline,
+	 * then to the others up to their own budget.
 	 */
-	public static WorkloadTask prepareTask(double maxMillisecondsPerTick) {
-		return new WorkloadTask(new WorkloadRunnable(maxMillisecondsPerTick));
+	private static class Deadlines {
+
+		private static final List<DeadlineTask> TASKS = new CopyOnWriteArrayList<>();
+		private static volatile long budgetNanos = 10_000_000L;
+		private static volatile Consumer<DeadlineMiss> missListener;
+		private static ScheduledTask timer;
+
+		private static synchronized ScheduledTask schedule(WorkloadRunnable workloadRunnable) {
+			// reused across parking, so the estimate and the reported miss are kept
+			DeadlineTask task = workloadRunnable.deadlineTask;
+			if (task == null) task = workloadRunnable.deadlineTask = new DeadlineTask(workloadRunnable);
+			task.cancelled = false;
+			if (!TASKS.contains(task)) TASKS.add(task);
+			if (timer == null || timer.isCancelled()) timer = scheduler.runTaskTimer(Deadlines::run, 1, 1);
+			return task;
+		}
+
+		private static void run() {
+			Object[] tasks = TASKS.toArray();
+			if (tasks.length == 0) {
+				synchronized (Deadlines.class) {
+					if (TASKS.isEmpty() && timer != null) {
+						timer.cancel();
+						timer = null;
+					}
+				}
+				return;
+			}
+			Arrays.sort(tasks, (first, second) -> Long.compare(((DeadlineTask) first).workloadRunnable.deadline,
+					((DeadlineTask) second).workloadRunnable.deadline));
+			TaskScheduler clock = scheduler;
+			long now = clock.nanoTime();
+			long budget = budgetNanos, left = budget;
+			long[] grants = new long[tasks.length];
+			boolean[] late = new boolean[tasks.length];
+			long[] remaining = new long[tasks.length];
+			long[] ticksLeft = new long[tasks.length];
+			for (int i = 0; i < tasks.length; i++) {
+				DeadlineTask task = (DeadlineTask) tasks[i];
+				remaining[i] = (long) (task.workloadRunnable.remainingWorkloads() * task.nanosPerWorkload);
+				ticksLeft[i] = Math.max(1, (task.workloadRunnable.deadline - now) / NANOS_PER_TICK);
+				long required = remaining[i] / ticksLeft[i] + 1;
+				// a runnable that can't make it anyway shouldn't make the following ones
+				// miss theirs too, so it only gets what's left
+				if (required > left) {
+					late[i] = true;
+					continue;
+				}
+				grants[i] = required;
+				left -= required;
+			}
+			for (int i = 0; i < tasks.length && left > 0; i++) {
+				if (!late[i]) continue;
+				grants[i] = left;
+				left = 0;
+			}
+			for (int i = 0; i < tasks.length && left > 0; i++) {
+				long extra = Math.min(left, ((DeadlineTask) tasks[i]).workloadRunnable.maxNanosPerTick - grants[i]);
+				if (extra <= 0) continue;
+				grants[i] += extra;
+				left -= extra;
+			}
+			// runnables with earlier deadlines are done first, so a late runnable misses
+			// its deadline once the work due before it, its own included, exceeds the
+			// budget of the ticks it has left, whether its own work or the earlier
+			// deadlines are what makes it late
+			long demand = 0;
+			for (int i = 0; i < tasks.length; i++) {
+				demand += remaining[i];
+				if (late[i] && demand > budget * ticksLeft[i])
+					((DeadlineTask) tasks[i]).predictMiss(remaining[i], grants[i], now);
+			}
+			for (int i = 0; i < tasks.length; i++) {
+				DeadlineTask task = (DeadlineTask) tasks[i];
+				if (task.cancelled || grants[i] <= 0) continue;
+				long startTime = clock.nanoTime();
+				task.workloadRunnable.runSlice(grants[i]);
+				task.measure(clock.nanoTime() - startTime, task.workloadRunnable.lastComputed);
+			}
+		}
+
+		private static class DeadlineTask implements ScheduledTask {
+
+			private static final double SMOOTHING = 0.3;
+
+			private final WorkloadRunnable workloadRunnable;
+			private volatile boolean cancelled;
+			private double nanosPerWorkload;
+			private boolean missReported;
+
+			private DeadlineTask(WorkloadRunnable workloadRunnable) {
+				this.workloadRunnable = workloadRunnable;
+			}
+
+			private void measure(long nanos, long computed) {
+				if (computed <= 0) return;
+				double sample = (double) nanos / computed;
+				nanosPerWorkload = nanosPerWorkload == 0 ? sample
+						: nanosPerWorkload + SMOOTHING * (sample - nanosPerWorkload);
+			}
+
+			private void predictMiss(long remainingNanos, long granted, long now) {
+				if (missReported || nanosPerWorkload == 0) return;
+				missReported = true;
+				long deadlineMillis = (workloadRunnable.deadline - now) / 1_000_000L;
+				long finishMillis = granted <= 0 ? -1
+						: remainingNanos / granted * NANOS_PER_TICK / 1_000_000L;
+				DeadlineMiss miss = new DeadlineMiss(workloadRunnable.getId(), deadlineMillis, finishMillis,
+						workloadRunnable.remainingWorkloads());
+				Consumer<DeadlineMiss> listener = missListener;
+				if (listener != null)
+					listener.accept(miss);
+				else
+					scheduler.getLogger().warning(miss.toString());
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				TASKS.remove(this);
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return cancelled;
+			}
+
+		}
+
 	}
 
 	/**
-	 * Loops through a collection's elements asynchronously
-	 * 
-	 * @param <T>        type of object
-	 * @param collection collection to loop through
-	 * @param action     action perform on loop elements
-	 * @return LoopFuture that contains a CompletableFuture and the elements
-	 *         currently being processed, returns a completed LoopFuture if
-	 *         collection doesn't have elements
+	 * Early warning that a runnable will likely finish after its deadline, see
+	 * {@linkplain BukkitWorker#setDeadlineMissListener(Consumer)}.
 	 */
-	public static <T> LoopFuture<T> forEach(Collection<T> collection, Consumer<? super T> action) {
-		if (collection.isEmpty()) return LoopFuture.createCompleted();
-		LoopFuture<T> loopFuture = new LoopFuture<>();
-		WorkloadRunnable workloadRunnable = new WorkloadRunnable();
-		workloadRunnable.start();
-		for (T element : collection) {
-			workloadRunnable.addWorkload(new RunnableWorkload(() -> action.accept(element)));
-			loopFuture.currentElement = element;
-			loopFuture.currentElementIndex++;
+	public static class DeadlineMiss {
+
+		private final int runnableId;
+		private final long deadlineMillis, predictedMillis, remainingWorkloads;
+
+		private DeadlineMiss(int runnableId, long deadlineMillis, long predictedMillis, long remainingWorkloads) {
+			this.runnableId = runnableId;
+			this.deadlineMillis = deadlineMillis;
+			this.predictedMillis = predictedMillis;
+			this.remainingWorkloads = remainingWorkloads;
+		}
+
+		public int getRunnableId() {
+			return runnableId;
+		}
+
+		/**
+		 * @return milliseconds left until the deadline when the miss was predicted,
+		 *         negative if it already passed
+		 */
+		public long getDeadlineMillis() {
+			return deadlineMillis;
+		}
+
+		/**
+		 * @return predicted milliseconds until the runnable is done, -1 if it got no
+		 *         budget at all
+		 */
+		public long getPredictedMillis() {
+			return predictedMillis;
+		}
+
+		public long getRemainingWorkloads() {
+			return remainingWorkloads;
+		}
+
+		@Override
+		public String toString() {
+			return "Runnable #" + runnableId + " is predicted to miss its deadline in " + deadlineMillis + "ms, "
+					+ remainingWorkloads + " workloads left"
+					+ (predictedMillis < 0 ? " with no budget" : ", done in ~" + predictedMillis + "ms");
 		}
-		workloadRunnable.run(() -> loopFuture.completableFuture.complete(loopFuture.currentElement));
-		return loopFuture;
-	}
 
-	/**
-	 * 
-	 * @param <T>  type of list's elements
-	 * @param list list elements to prepare a loop for
-	 * @return A PreparedLoop that can setup conditions before a loop starts
-	 */
-	public static <T> PreparedLoop<T> prepareLoop(List<T> list) {
-		return new PreparedLoop<T>(list);
 	}
 
 	/**
-	 * 
-	 * @param <T>        type of collection's elements
-	 * @param collection collection to prepare a loop for
-	 * @return A PreparedLoop that can setup conditions before a loop starts
+	 * Limits how many workloads a runnable runs, for work that's limited by
+	 * something other than cpu time, such as packets or database writes. Combines
+	 * a maximum per tick with a per second token bucket, and workloads can weigh
+	 * more than one item. A rate limit belongs to a single runnable.
+	 * <p>
+	 * {@code RateLimit.perTick(100).andPerSecond(1000)}
 	 */
-	public static <T> PreparedLoop<T> prepareLoop(Collection<T> collection) {
-		return new PreparedLoop<T>(collection);
-	}
+	public static class RateLimit {
+
+		private int maxPerTick;
+		private double perSecond, burst, tokens;
+		private long lastRefillTime = Long.MIN_VALUE;
+		private long usedThisTick, totalUsed;
+
+		/**
+		 * @param maxPerTick maximum items per tick
+		 * @return a new rate limit
+		 */
+		public static RateLimit perTick(int maxPerTick) {
+			return new RateLimit().andPerTick(maxPerTick);
+		}
+
+		/**
+		 * @param perSecond maximum items per second, spread evenly across ticks
+		 * @return a new rate limit
+		 */
+		public static RateLimit perSecond(double perSecond) {
+			return new RateLimit().andPerSecond(perSecond);
+		}
+
+		public RateLimit andPerTick(int maxPerTick) {
+			this.maxPerTick = maxPerTick;
+			return this;
+		}
+
+		/**
+		 * @param perSecond maximum items per second, at most a tick's worth of items
+		 *                  can be saved up
+		 * @return this rate limit
+		 */
+		public RateLimit andPerSecond(double perSecond) {
+			return andPerSecond(perSecond, Math.max(1, perSecond / 20));
+		}
+
+		/**
+		 * @param perSecond maximum items per second
+		 * @param burst     maximum items that can be saved up by idle ticks, higher
+		 *                  values smooth less
+		 * @return this rate limit
+		 */
+		public RateLimit andPerSecond(double perSecond, double burst) {
+			this.perSecond = perSecond;
+			this.burst = burst;
+			this.tokens = Math.min(tokens, burst);
+			return this;
+		}
+
+		private void refill(long now) {
+			usedThisTick = 0;
+			if (perSecond <= 0) return;
+			if (lastRefillTime == Long.MIN_VALUE)
+				tokens = burst;
+			else if (now > lastRefillTime)
+				tokens = Math.min(burst, tokens + (now - lastRefillTime) * perSecond / 1E9);
+			lastRefillTime = now;
+		}
+
+		private boolean hasCapacity() {
+			return (maxPerTick <= 0 || usedThisTick < maxPerTick) && (perSecond <= 0 || tokens > 0);
+		}
+
+		private void consume(int cost) {
+			usedThisTick += cost;
+			totalUsed += cost;
+			tokens -= cost;
+		}
+
+		public long getTotalUsed() {
+			return totalUsed;
+		}
+
+		@Override
+		public String toString() {
+			return "RateLimit: perTick=" + maxPerTick + " perSecond=" + perSecond + " burst=" + burst + " used="
+					+ totalUsed;
+		}
 
-	/**
-	 * 
-	 * @param <T>      type of iterable's elements
-	 * @param iterable iterable to prepare a loop for
-	 * @return A PreparedLoop that can setup conditions before a loop starts
-	 */
-	public static <T> PreparedLoop<T> prepareLoop(Iterable<T> iterable) {
-		return new PreparedLoop<T>(iterable);
 	}
 
 	/**
-	 * 
-	 * @param <T>   type of array's elements
-	 * @param array array elements to prepare a loop for
-	 * @return An ArrayPreparedLoop that can setup conditions before a loop starts
+	 * A tenant of the worker, e.g a plugin, whose runnables share a per-tick time
+	 * quota. Each run of an owned runnable takes its budget out of the owner's
+	 * token bucket and is charged for the time it actually used, so overruns are
+	 * paid back in the following ticks.
 	 */
-	public static <T> ArrayPreparedLoop<T> prepareLoop(T[] array) {
-		return new ArrayPreparedLoop<T>(array);
+	public static class WorkloadOwner {
+
+		private static final AtomicInteger IDS = new AtomicInteger();
+
+		private final String name;
+		private final int id = IDS.incrementAndGet();
+		private long quotaNanosPerTick, burstNanos;
+		private long tokens, lastRefillTime = Long.MIN_VALUE;
+		private long firstRunTime = Long.MIN_VALUE, lastChargeTime;
+		private long usedNanos, runs, throttledRuns, skippedRuns;
+
+		private WorkloadOwner(String name) {
+			this.name = name;
+		}
+
+		private synchronized void setQuota(double quotaMillisPerTick, double burstMillis) {
+			quotaNanosPerTick = (long) (quotaMillisPerTick * 1E6);
+			burstNanos = Math.max(quotaNanosPerTick, (long) (burstMillis * 1E6));
+			tokens = Math.min(tokens, burstNanos);
+		}
+
+		/**
+		 * @param wantedNanos budget the runnable would like to use
+		 * @param now         current clock time
+		 * @return budget granted for this run, 0 or less if the quota is used up
+		 */
+		private synchronized long acquire(long wantedNanos, long now) {
+			if (lastRefillTime == Long.MIN_VALUE) {
+				lastRefillTime = firstRunTime = now;
+				tokens = quotaNanosPerTick;
+			} else if (now > lastRefillTime) {
+				long refill = (long) ((double) (now - lastRefillTime) * quotaNanosPerTick / NANOS_PER_TICK);
+				tokens = Math.min(burstNanos, tokens + refill);
+				lastRefillTime = now;
+			}
+			runs++;
+			if (tokens <= 0) {
+				skippedRuns++;
+				return 0;
+			}
+			if (tokens < wantedNanos) {
+				throttledRuns++;
+				return tokens;
+			}
+			return wantedNanos;
+		}
+
+		private synchronized void charge(long nanos, long now) {
+			tokens -= nanos;
+			usedNanos += nanos;
+			lastChargeTime = now;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public synchronized double getQuotaMillisPerTick() {
+			return quotaNanosPerTick / 1E6;
+		}
+
+		public synchronized double getBurstMillis() {
+			return burstNanos / 1E6;
+		}
+
+		public synchronized long getUsedNanos() {
+			return usedNanos;
+		}
+
+		/**
+		 * @return average milliseconds used per tick since the owner's first run
+		 */
+		public synchronized double getAverageMillisPerTick() {
+			if (firstRunTime == Long.MIN_VALUE) return 0;
+			double ticks = Math.max(1, (double) (lastChargeTime - firstRunTime) / NANOS_PER_TICK);
+			return usedNanos / ticks / 1E6;
+		}
+
+		public synchronized long getRuns() {
+			return runs;
+		}
+
+		/**
+		 * @return runs that got less than their budget because of the quota
+		 */
+		public synchronized long getThrottledRuns() {
+			return throttledRuns;
+		}
+
+		/**
+		 * @return runs that were skipped entirely because of the quota
+		 */
+		public synchronized long getSkippedRuns() {
+			return skippedRuns;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%s: quota=%.2fms burst=%.2fms avg=%.3fms/tick used=%.1fms runs=%d throttled=%d skipped=%d",
+					name, quotaNanosPerTick / 1E6, burstNanos / 1E6, getAverageMillisPerTick(), usedNanos / 1E6, runs,
+					throttledRuns, skippedRuns);
+		}
+
 	}
 
 	/**
-	 * This equals:
-	 * <p>
-	 * {@code for (int i = 0; i < size; i++);}
-	 * 
-	 * @param size the number the loop ends at
-	 * @return An equivalent to PreparedLoop, but for integers.
+	 * Daemon thread that samples the workload each tracked runnable is computing
+	 * and reports the ones that run past the threshold, once per workload call.
 	 */
-	public static IntPreparedLoop prepareLoopInt(int size) {
-		return new IntPreparedLoop(0, IntCondition.lessThanInt(), IntOperation.increaseInt(), size);
+	private static class Watchdog extends Thread {
+
+		private final Set<WorkloadRunnable> runnables = ConcurrentHashMap.newKeySet();
+		private final long thresholdNanos;
+		private final boolean quarantine;
+		private final Consumer<StuckWorkload> reporter;
+		private final Map<WorkloadRunnable, Long> reported = new HashMap<>();
+
+		private Watchdog(long thresholdNanos, boolean quarantine, Consumer<StuckWorkload> reporter) {
+			super("BukkitWorker-Watchdog");
+			this.thresholdNanos = thresholdNanos;
+			this.quarantine = quarantine;
+			this.reporter = reporter;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long interval = Math.max(1, thresholdNanos / 4_000_000L);
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				sample();
+			}
+		}
+
+		private void sample() {
+			long now = System.nanoTime();
+			reported.keySet().retainAll(runnables);
+			for (WorkloadRunnable runnable : runnables) {
+				Workload workload = runnable.executing;
+				long since = runnable.executingSince;
+				if (workload == null || now - since < thresholdNanos) continue;
+				Long last = reported.put(runnable, since);
+				if (last != null && last == since) continue;
+				Thread thread = runnable.executingThread;
+				StackTraceElement[] stackTrace = thread == null ? new StackTraceElement[0] : thread.getStackTrace();
+				// the workload may have returned while the stack was taken
+				if (runnable.executing != workload || runnable.executingSince != since) continue;
+				boolean quarantined = quarantine && runnable.isQuarantinable();
+				if (quarantined)
+					runnable.quarantined = true;
+				else if (quarantine) runnable.dropped = workload;
+				WorkloadOwner owner = runnable.owner;
+				try {
+					reporter.accept(new StuckWorkload(runnable.id, owner == null ? null : owner.getName(),
+							workload.source().getClass().getName(), now - since, stackTrace, quarantined));
+				} catch (Throwable throwable) {
+					scheduler.getLogger().log(Level.WARNING, "Watchdog reporter failed for runnable #" + runnable.id,
+							throwable);
+				}
+			}
+		}
+
 	}
 
 	/**
-	 * This equals:
-	 * <p>
-	 * {@code for (int i = startIndex; i < size; i++);}
-	 * 
-	 * @param size       the number the loop ends at
-	 * @param startIndex the number the loop starts from
-	 * @return An equivalent to PreparedLoop, but for integers.
+	 * Report of a workload that ran past the watchdog's threshold, see
+	 * {@linkplain BukkitWorker#startWatchdog(double, boolean, Consumer)}.
 	 */
-	public static IntPreparedLoop prepareLoopInt(int startIndex, int size) {
-		return new IntPreparedLoop(startIndex, IntCondition.lessThanInt(), IntOperation.increaseInt(), size);
+	public static class StuckWorkload {
+
+		private final int runnableId;
+		private final String ownerName;
+		private final String workloadType;
+		private final long elapsedNanos;
+		private final StackTraceElement[] stackTrace;
+		private final boolean quarantined;
+
+		private StuckWorkload(int runnableId, String ownerName, String workloadType, long elapsedNanos,
+				StackTraceElement[] stackTrace, boolean quarantined) {
+			this.runnableId = runnableId;
+			this.ownerName = ownerName;
+			this.workloadType = workloadType;
+			this.elapsedNanos = elapsedNanos;
+			this.stackTrace = stackTrace;
+			this.quarantined = quarantined;
+		}
+
+		/**
+		 * @return {@linkplain WorkloadRunnable#getId()} of the loop's runnable
+		 */
+		public int getRunnableId() {
+			return runnableId;
+		}
+
+		/**
+		 * @return name of the runnable's owner, or null if it has none
+		 */
+		public String getOwnerName() {
+			return ownerName;
+		}
+
+		/**
+		 * @return class name of the workload, or of the consumer it wraps
+		 */
+		public String getWorkloadType() {
+			return workloadType;
+		}
+
+		/**
+		 * @return how long the workload had been running when it was sampled
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public StackTraceElement[] getStackTrace() {
+			return stackTrace;
+		}
+
+		public boolean isQuarantined() {
+			return quarantined;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder(String.format("Workload %s of runnable #%d (owner %s) running for %.1fms%s",
+					workloadType, runnableId, ownerName, elapsedNanos / 1E6, quarantined ? ", quarantined" : ""));
+			for (StackTraceElement element : stackTrace) builder.append("\n\tat ").append(element);
+			return builder.toString();
+		}
+
 	}
 
 	/**
-	 * This equals:
-	 * <p>
-	 * {@code for (int i = 0; intCondition; intOperation);}
-	 * 
-	 * @param size         the number the loop ends at. It's used by the int
-	 *                     condition
-	 * @param intCondition the condition that keeps the loop running
-	 * @param intOperation the operation that's performed on {@code i}, such as
-	 *                     {@code IntOperation.increaseInt()} which equals
-	 *                     {@code i++}
-	 * @return An equivalent to PreparedLoop, but for integers.
+	 * Records fixed size binary events into a ring buffer per thread, so recording
+	 * costs a thread local lookup per slice and a clock read and three array
+	 * stores per workload. An event is three longs: its time, a packed long with
+	 * the type, runnable id, owner id and thread index, and a value, which is a
+	 * duration for slices and workloads.
 	 */
-	public static IntPreparedLoop prepareLoopInt(int size, IntCondition intCondition, IntOperation intOperation) {
-		return new IntPreparedLoop(0, intCondition, intOperation, size);
+	private static class TraceRecorder {
+
+		private static final int MAGIC = 0x42575452, VERSION = 1;
+		private static final int SLICE = 1, WORKLOAD = 2, ENQUEUE = 3, TICK_END = 4;
+		private static volatile TraceRecorder last;
+
+		private final int capacity;
+		private final List<TraceRing> rings = new CopyOnWriteArrayList<>();
+		private final ThreadLocal<TraceRing> threadRing;
+
+		private TraceRecorder(int capacity) {
+			this.capacity = capacity;
+			this.threadRing = ThreadLocal.withInitial(() -> {
+				TraceRing ring = new TraceRing(capacity, rings.size(), Thread.currentThread().getName());
+				rings.add(ring);
+				return ring;
+			});
+			last = this;
+		}
+
+		private TraceRing ring() {
+			return threadRing.get();
+		}
+
+		private long write(Path file) throws IOException {
+			long events = 0;
+			try (DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(OWNERS.size());
+				for (WorkloadOwner owner : OWNERS.values()) {
+					output.writeInt(owner.id);
+					output.writeUTF(owner.getName());
+				}
+				output.writeInt(rings.size());
+				for (TraceRing ring : rings) output.writeUTF(ring.threadName);
+				for (TraceRing ring : rings) {
+					long written = ring.written;
+					long first = Math.max(0, written - capacity);
+					output.writeLong(written - first);
+					for (long event = first; event < written; event++) {
+						int index = (int) (event % capacity) * 3;
+						output.writeLong(ring.events[index]);
+						output.writeLong(ring.events[index + 1]);
+						output.writeLong(ring.events[index + 2]);
+					}
+					events += written - first;
+				}
+			}
+			return events;
+		}
+
 	}
 
 	/**
-	 * This equals:
-	 * <p>
-	 * {@code for (int i = startIndex; intCondition; intOperation);}
-	 * 
-	 * @param size         the number the loop ends at. It's used by the int
-	 *                     condition
-	 * @param startIndex   the number the loop starts from
-	 * @param intCondition the condition that keeps the loop running
-	 * @param intOperation the operation that's performed on {@code i}, such as
-	 *                     {@code IntOperation.increaseInt()} which equals
-	 *                     {@code i++}
-	 * @return An equivalent to PreparedLoop, but for integers.
+	 * Events of a single thread, only written by that thread
 	 */
-	public static IntPreparedLoop prepareLoopInt(int startIndex, int size, IntCondition intCondition,
-			IntOperation intOperation) {
-		return new IntPreparedLoop(startIndex, intCondition, intOperation, size);
+	private static class TraceRing {
+
+		private final long[] events;
+		private final int capacity, threadIndex;
+		private final String threadName;
+		private long written;
+
+		private TraceRing(int capacity, int threadIndex, String threadName) {
+			this.events = new long[capacity * 3];
+			this.capacity = capacity;
+			this.threadIndex = threadIndex;
+			this.threadName = threadName;
+		}
+
+		private void record(int type, int runnableId, int ownerId, long time, long value) {
+			int index = (int) (written++ % capacity) * 3;
+			events[index] = time;
+			events[index + 1] = (long) type << 60 | (runnableId & 0xFFFFFFFL) << 32 | (ownerId & 0xFFFFL) << 16
+					| (threadIndex & 0xFFFF);
+			events[index + 2] = value;
+		}
+
 	}
 
 	/**
-	 * Cancels a workload by removing any pending tasks and canceling the bukkit
-	 * task that holds it
-	 * 
-	 * @param id id of workload to cancel
+	 * Per runnable time breakdown of a recorded trace, see
+	 * {@linkplain BukkitWorker#summariseTrace(Path)}.
 	 */
-	public static void cancel(int id) {
-		if (!WORKLOADS.containsKey(id)) return;
-		WORKLOADS.get(id).clearWorkloads();
-		WORKLOADS.get(id).bukkitTask.cancel();
-	}
+	public static class TraceSummary {
+
+		private final Map<Integer, RunnableTrace> runnables = new HashMap<>();
+		private long ticks, events, firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+
+		private static TraceSummary read(Path file) throws IOException {
+			TraceSummary summary = new TraceSummary();
+			try (DataInputStream input = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+				if (input.readInt() != TraceRecorder.MAGIC || input.readInt() != TraceRecorder.VERSION)
+					throw new IOException("Not a trace file: " + file);
+				Map<Integer, String> owners = new HashMap<>();
+				for (int i = input.readInt(); i > 0; i--) owners.put(input.readInt(), input.readUTF());
+				int threads = input.readInt();
+				for (int i = 0; i < threads; i++) input.readUTF();
+				for (int i = 0; i < threads; i++) {
+					for (long event = input.readLong(); event > 0; event--)
+						summary.add(input.readLong(), input.readLong(), input.readLong(), owners);
+				}
+			}
+			return summary;
+		}
 
-	public static void cancel(WorkloadTask workloadTask) {
-		if (workloadTask != null) workloadTask.cancel();
-	}
+		private void add(long time, long packed, long value, Map<Integer, String> owners) {
+			events++;
+			firstTime = Math.min(firstTime, time);
+			lastTime = Math.max(lastTime, time);
+			int type = (int) (packed >>> 60);
+			if (type == TraceRecorder.TICK_END) {
+				ticks++;
+				return;
+			}
+			int runnableId = (int) (packed >>> 32 & 0xFFFFFFF);
+			RunnableTrace trace = runnables.computeIfAbsent(runnableId, RunnableTrace::new);
+			trace.ownerName = owners.get((int) (packed >>> 16 & 0xFFFF));
+			if (type == TraceRecorder.SLICE) {
+				trace.slices++;
+				trace.sliceNanos += value;
+			} else if (type == TraceRecorder.WORKLOAD) {
+				trace.workloads++;
+				trace.workloadNanos += value;
+				trace.maxWorkloadNanos = Math.max(trace.maxWorkloadNanos, value);
+			} else if (type == TraceRecorder.ENQUEUE) {
+				trace.posts++;
+			}
+		}
+
+		/**
+		 * @return runnables sorted by the time they used, the most first
+		 */
+		public List<RunnableTrace> getRunnables() {
+			List<RunnableTrace> list = new ArrayList<>(runnables.values());
+			list.sort((first, second) -> Long.compare(second.sliceNanos, first.sliceNanos));
+			return list;
+		}
+
+		/**
+		 * @return recorded tick ends, 0 when the scheduler can't detect them
+		 */
+		public long getTicks() {
+			return ticks;
+		}
+
+		public long getEvents() {
+			return events;
+		}
+
+		/**
+		 * @return nanoseconds between the first and last event
+		 */
+		public long getSpanNanos() {
+			return events == 0 ? 0 : lastTime - firstTime;
+		}
+
+		@Override
+		public String toString() {
+			long ticks = this.ticks > 0 ? this.ticks : Math.max(1, getSpanNanos() / NANOS_PER_TICK);
+			StringBuilder builder = new StringBuilder(String.format("%d events over %.1fms, %d ticks%s%n", events,
+					getSpanNanos() / 1E6, ticks, this.ticks > 0 ? "" : " (estimated)"));
+			for (RunnableTrace trace : getRunnables())
+				builder.append(String.format("#%d %s: %.3fms/tick, %d slices, %d workloads avg=%.1fus max=%.3fms, %d posted%n",
+						trace.runnableId, trace.ownerName == null ? "-" : trace.ownerName, trace.sliceNanos / 1E6 / ticks,
+						trace.slices, trace.workloads, trace.workloads == 0 ? 0 : trace.workloadNanos / 1E3 / trace.workloads,
+						trace.maxWorkloadNanos / 1E6, trace.posts));
+			return builder.toString();
+		}
 
-	public static void cancel(WorkloadTask workloadTask, boolean clearWorkloads) {
-		if (clearWorkloads) workloadTask.clearAll();
-		workloadTask.cancel();
 	}
 
-	public static void cancel(WorkloadRunnable workloadRunnable) {
-		workloadRunnable.bukkitTask.cancel();
-	}
+	public static class RunnableTrace {
+
+		private final int runnableId;
+		private String ownerName;
+		private long slices, sliceNanos, workloads, workloadNanos, maxWorkloadNanos, posts;
+
+		private RunnableTrace(int runnableId) {
+			this.runnableId = runnableId;
+		}
+
+		/**
+		 * @return {@linkplain WorkloadRunnable#getId()} of the runnable
+		 */
+		public int getRunnableId() {
+			return runnableId;
+		}
+
+		public String getOwnerName() {
+			return ownerName;
+		}
+
+		public long getSlices() {
+			return slices;
+		}
+
+		public long getSliceNanos() {
+			return sliceNanos;
+		}
 
-	public static void cancel(WorkloadRunnable workloadRunnable, boolean clearWorkloads) {
-		if (clearWorkloads) workloadRunnable.clearWorkloads();
-		workloadRunnable.bukkitTask.cancel();
-	}
+		public long getWorkloads() {
+			return workloads;
+		}
 
-	public static void addCanceller(int id) {
-		WORKLOADS.get(id).addWorkload(new CancelWorkload());
-	}
+		public long getWorkloadNanos() {
+			return workloadNanos;
+		}
 
-	public static void addCanceller(WorkloadTask workloadTask) {
-		workloadTask.addCancellerWorkload();
-	}
+		public long getMaxWorkloadNanos() {
+			return maxWorkloadNanos;
+		}
+
+		/**
+		 * @return workloads posted to the runnable's mailbox
+		 */
+		public long getPosts() {
+			return posts;
+		}
 
-	public static void addCanceller(WorkloadRunnable workloadRunnable) {
-		workloadRunnable.addWorkload(new CancelWorkload());
 	}
 
 	/**
-	 * Cancels a workload by removing any pending tasks and canceling the bukkit
-	 * task that holds it, and then removes the work load from the memory if release
-	 * is true.
+	 * A deterministic scheduler that drives workload runnables in virtual time,
+	 * outside of a server.
+	 * <p>
+	 * Every {@linkplain #tick()} runs the tasks that are due in the order they were
+	 * scheduled, async ones included, on the calling thread. The clock only moves
+	 * when it's advanced, either by workloads through {@linkplain #advance(long)}
+	 * or automatically on every {@linkplain #nanoTime()} call, so budgets, fairness
+	 * and completion timing can be checked on a plain JVM.
 	 * 
-	 * @param id      id of workload to cancel
-	 * @param release whether to remove workload from memory or not
+	 * <pre>
+	 * TickSimulator simulator = new TickSimulator();
+	 * BukkitWorker.setScheduler(simulator);
+	 * LoopFuture&lt;Integer&gt; future = BukkitWorker.prepareLoopInt(1000).forEach(i -&gt; simulator.advance(10_000));
+	 * int ticks = simulator.runUntilIdle(100);
+	 * </pre>
 	 */
-	public static void cancel(int id, boolean release) {
-		cancel(id);
-		if (release) WORKLOADS.remove(id);
-	}
+	public static class TickSimulator implements TaskScheduler {
 
-	public static boolean isCancelled(int id) {
-		return !WORKLOADS.containsKey(id) || WORKLOADS.get(id).workloadDeque.isEmpty();
-	}
-
-	public static boolean isReleased(int id) {
-		return !WORKLOADS.containsKey(id);
-	}
-
-	public static boolean isPendingTasks(int id) {
-		return !WORKLOADS.get(id).workloadDeque.isEmpty();
-	}
-
-	public static class WorkloadTask {
+		public static final long NANOS_PER_TICK = BukkitWorker.NANOS_PER_TICK;
 
-		private WorkloadRunnable workloadRunnable;
-		private boolean cancelled;
+		private final List<SimulatedTask> tasks = new ArrayList<>();
+		private final List<SimulatedTask> scheduledDuringTick = new ArrayList<>();
+		private Thread primaryThread = Thread.currentThread();
+		private long nanoTime;
+		private long nanoTimeStep;
+		private long currentTick;
+		private long lastTickNanos, maxTickNanos, totalTickNanos;
+		private boolean ticking, regionized;
+		private long tickWorkNanos;
+		private final List<LongConsumer> tickEndHooks = new CopyOnWriteArrayList<>();
 
-		public WorkloadTask(WorkloadRunnable workloadRunnable) {
-			this.workloadRunnable = workloadRunnable;
+		/**
+		 * Advances the clock, used by simulated workloads to account for their cost
+		 * 
+		 * @param nanos nanoseconds to advance the clock by
+		 */
+		public synchronized void advance(long nanos) {
+			nanoTime += nanos;
 		}
 
-		public WorkloadTask start() {
-			workloadRunnable.start();
-			return this;
+		/**
+		 * @param nanoTimeStep nanoseconds the clock advances by on every
+		 *                     {@linkplain #nanoTime()} call, 0 by default
+		 */
+		public synchronized void setNanoTimeStep(long nanoTimeStep) {
+			this.nanoTimeStep = nanoTimeStep;
 		}
 
-		public WorkloadTask start(boolean bukkitAsync) {
-			if (bukkitAsync)
-				workloadRunnable.startAsync();
-			else
-				workloadRunnable.start();
-			return this;
+		public void setPrimaryThread(Thread primaryThread) {
+			this.primaryThread = primaryThread;
 		}
 
-		public WorkloadTask addWorkload(Runnable runnable) {
-			workloadRunnable.addWorkload(new RunnableWorkload(runnable));
-			return this;
+		/**
+		 * @param tickWorkNanos nanoseconds of simulated server work per tick, spent
+		 *                      after the scheduled tasks and before the tick end
+		 *                      hooks
+		 */
+		public synchronized void setTickWorkNanos(long tickWorkNanos) {
+			this.tickWorkNanos = tickWorkNanos;
 		}
 
-		public <T> WorkloadTask addWorkload(T t, Consumer<T> consumer) {
-			workloadRunnable.addWorkload(new ConsumerWorkload<T>(t, consumer));
-			return this;
+		/**
+		 * @param regionized whether to act as a region threaded server, lane timers
+		 *                   are then kept apart per lane, see
+		 *                   {@linkplain #getActiveLanes()}
+		 */
+		public void setRegionized(boolean regionized) {
+			this.regionized = regionized;
 		}
 
-		public WorkloadTask addWorkload(int i, IntConsumer intConsumer) {
-			workloadRunnable.addWorkload(new IntWorkload(i, intConsumer));
-			return this;
+		/**
+		 * Runs one tick. The clock is moved to the start of the next tick afterwards
+		 * unless the tick took longer than {@link #NANOS_PER_TICK}.
+		 */
+		public void tick() {
+			long tickStart;
+			List<SimulatedTask> due = new ArrayList<>();
+			synchronized (this) {
+				tickStart = nanoTime;
+				currentTick++;
+				ticking = true;
+				for (SimulatedTask task : tasks) if (!task.cancelled && task.nextTick <= currentTick) due.add(task);
+			}
+			try {
+				for (SimulatedTask task : due) {
+					if (task.cancelled) continue;
+					if (task.period > 0)
+						task.nextTick = currentTick + task.period;
+					else
+						task.cancelled = true;
+					task.runnable.run();
+				}
+				long remaining;
+				synchronized (this) {
+					nanoTime += tickWorkNanos;
+					remaining = tickStart + NANOS_PER_TICK - nanoTime;
+				}
+				for (LongConsumer hook : tickEndHooks) hook.accept(remaining);
+			} finally {
+				synchronized (this) {
+					ticking = false;
+					tasks.removeIf(task -> task.cancelled);
+					tasks.addAll(scheduledDuringTick);
+					scheduledDuringTick.clear();
+					lastTickNanos = nanoTime - tickStart;
+					totalTickNanos += lastTickNanos;
+					if (lastTickNanos > maxTickNanos) maxTickNanos = lastTickNanos;
+					if (nanoTime < tickStart + NANOS_PER_TICK) nanoTime = tickStart + NANOS_PER_TICK;
+				}
+			}
 		}
 
-		public <T> WorkloadTask addWorkload(Supplier<T> supplier) {
-			workloadRunnable.addWorkload(new SupplierWorkload<T>(supplier));
-			return this;
+		/**
+		 * @param ticks amount of ticks to run
+		 */
+		public void tick(int ticks) {
+			for (int i = 0; i < ticks; i++) tick();
 		}
 
-		public WorkloadTask addCancellerWorkload() {
-			workloadRunnable.addWorkload(new CancelWorkload());
-			return this;
+		/**
+		 * Runs ticks until no tasks are scheduled anymore
+		 * 
+		 * @param maxTicks maximum ticks to run
+		 * @return amount of ticks that were run
+		 */
+		public int runUntilIdle(int maxTicks) {
+			int ticks = 0;
+			while (ticks < maxTicks && getPendingTaskCount() > 0) {
+				tick();
+				ticks++;
+			}
+			return ticks;
 		}
 
-		public void cancel() {
-			workloadRunnable.bukkitTask.cancel();
-			cancelled = true;
+		public synchronized int getPendingTaskCount() {
+			int count = 0;
+			for (SimulatedTask task : tasks) if (!task.cancelled) count++;
+			for (SimulatedTask task : scheduledDuringTick) if (!task.cancelled) count++;
+			return count;
 		}
 
-		public boolean isCancelled() {
-			return cancelled;
+		public synchronized long getCurrentTick() {
+			return currentTick;
 		}
 
 		/**
-		 * Removes all added workloads
+		 * @return lanes that have a timer that isn't cancelled
 		 */
-		public void clearAll() {
-			workloadRunnable.clearWorkloads();
+		public synchronized List<LaneKey> getActiveLanes() {
+			List<LaneKey> lanes = new ArrayList<>();
+			for (SimulatedTask task : tasks) if (task.lane != null && !task.cancelled) lanes.add(task.lane);
+			for (SimulatedTask task : scheduledDuringTick) if (task.lane != null && !task.cancelled) lanes.add(task.lane);
+			return lanes;
 		}
 
-		public WorkloadRunnable getManagedRunnable() {
-			return workloadRunnable;
+		/**
+		 * @return virtual nanoseconds spent by the tasks of the last tick
+		 */
+		public synchronized long getLastTickNanos() {
+			return lastTickNanos;
 		}
 
-		public boolean hasWorkloads() {
-			return !workloadRunnable.workloadDeque.isEmpty();
+		public synchronized long getMaxTickNanos() {
+			return maxTickNanos;
 		}
 
-	}
-
-	public static class WorkloadRunnable implements Runnable {
-
-		private static final double MAX_MILLIS_PER_TICK = 2.5;
-
-		private int maxNanosPerTick = (int) (MAX_MILLIS_PER_TICK * 1E6);
+		public synchronized long getTotalTickNanos() {
+			return totalTickNanos;
+		}
 
-		private final Deque<Workload> workloadDeque;
+		private synchronized ScheduledTask schedule(Runnable runnable, long delay, long period, boolean async) {
+			return schedule(runnable, delay, period, async, null);
+		}
 
-		private BukkitTask bukkitTask;
+		private synchronized ScheduledTask schedule(Runnable runnable, long delay, long period, boolean async,
+				LaneKey lane) {
+			SimulatedTask task = new SimulatedTask(runnable, currentTick + Math.max(1, delay), period, async);
+			task.lane = lane;
+			if (ticking)
+				scheduledDuringTick.add(task);
+			else
+				tasks.add(task);
+			return task;
+		}
 
-		public WorkloadRunnable() {
-			workloadDeque = new ArrayDeque<>();
+		@Override
+		public ScheduledTask runTask(Runnable runnable) {
+			return schedule(runnable, 1, 0, false);
 		}
 
-		public WorkloadRunnable(double maxMillisecondsPerTick) {
-			workloadDeque = new ArrayDeque<>();
-			maxNanosPerTick = (int) (maxMillisecondsPerTick * 1E6);
+		@Override
+		public ScheduledTask runTaskAsynchronously(Runnable runnable) {
+			return schedule(runnable, 1, 0, true);
 		}
 
-		public void addWorkload(Workload workload) {
-			this.workloadDeque.add(workload);
+		@Override
+		public ScheduledTask runTaskTimer(Runnable runnable, long delay, long period) {
+			return schedule(runnable, delay, Math.max(1, period), false);
 		}
 
-		public <T> SupplierWorkload<T> addSupplierWorkload(SupplierWorkload<T> workload) {
-			this.workloadDeque.add(workload);
-			return workload;
+		@Override
+		public ScheduledTask runTaskTimerAsynchronously(Runnable runnable, long delay, long period) {
+			return schedule(runnable, delay, Math.max(1, period), true);
 		}
 
-		public void start() {
-			bukkitTask = Bukkit.getScheduler().runTaskTimer(PLUGIN, this, 1, 1);
+		@Override
+		public boolean isRegionized() {
+			return regionized;
 		}
 
-		public void startAsync() {
-			bukkitTask = Bukkit.getScheduler().runTaskTimerAsynchronously(PLUGIN, this, 1, 1);
+		@Override
+		public boolean registerTickEndHook(LongConsumer hook) {
+			tickEndHooks.add(hook);
+			return true;
 		}
 
-		public void run(Runnable runnable) {
-			addWorkload(new RunnableWorkload(runnable));
+		@Override
+		public ScheduledTask runLaneTimer(LaneKey lane, Runnable runnable, long delay, long period) {
+			return schedule(runnable, delay, Math.max(1, period), false, regionized ? lane : null);
 		}
 
-		public void clearWorkloads() {
-			workloadDeque.clear();
+		@Override
+		public synchronized long nanoTime() {
+			return nanoTime += nanoTimeStep;
 		}
 
 		@Override
-		public void run() {
-			long stopTime = System.nanoTime() + maxNanosPerTick;
+		public boolean isPrimaryThread() {
+			return Thread.currentThread() == primaryThread;
+		}
 
-			Workload nextLoad;
+		private static class SimulatedTask implements ScheduledTask {
+
+			private final Runnable runnable;
+			private final long period;
+			private final boolean async;
+			private LaneKey lane;
+			private volatile long nextTick;
+			private volatile boolean cancelled;
+
+			private SimulatedTask(Runnable runnable, long nextTick, long period, boolean async) {
+				this.runnable = runnable;
+				this.nextTick = nextTick;
+				this.period = period;
+				this.async = async;
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return cancelled;
+			}
 
-			while (System.nanoTime() <= stopTime && (nextLoad = this.workloadDeque.poll()) != null) {
-				if (!nextLoad.compute()) bukkitTask.cancel();
+			@Override
+			public String toString() {
+				return (lane != null ? "lane " + lane + ":" : async ? "async:" : "sync:") + nextTick + ":" + period + ":"
+						+ cancelled;
 			}
+
 		}
 
 	}
@@ -1293,12 +6768,18 @@ public class BukkitWorker {
 			return true;
 		}
 
+		@Override
+		public Object source() {
+			return runnable;
+		}
+
 	}
 
 	private static class IntWorkload implements Workload {
 
 		private int i;
 		private IntConsumer consumer;
+		private WorkloadPool pool;
 
 		public IntWorkload(int i, IntConsumer consumer) {
 			this.i = i;
@@ -1311,12 +6792,23 @@ public class BukkitWorker {
 			return true;
 		}
 
+		@Override
+		public Object source() {
+			return consumer;
+		}
+
+		@Override
+		public void recycle() {
+			if (pool != null) pool.release(this);
+		}
+
 	}
 
 	private static class ConsumerWorkload<T> implements Workload {
 
 		private T t;
 		private Consumer<? super T> consumer;
+		private WorkloadPool pool;
 
 		public ConsumerWorkload(T t, Consumer<? super T> consumer) {
 			this.t = t;
@@ -1329,27 +6821,249 @@ public class BukkitWorker {
 			return true;
 		}
 
+		@Override
+		public Object source() {
+			return consumer;
+		}
+
+		@Override
+		public void recycle() {
+			if (pool != null) pool.release(this);
+		}
+
+	}
+
+	private static class WeightedWorkload implements Workload {
+
+		private final Workload workload;
+		private final int cost;
+
+		public WeightedWorkload(Workload workload, int cost) {
+			this.workload = workload;
+			this.cost = cost;
+		}
+
+		@Override
+		public boolean compute() {
+			return workload.compute();
+		}
+
+		@Override
+		public int cost() {
+			return cost;
+		}
+
+		@Override
+		public Object source() {
+			return workload.source();
+		}
+
+	}
+
+	/**
+	 * A failed workload waiting to be computed again, see
+	 * {@linkplain FailurePolicy#retry(int, int, boolean)}.
+	 */
+	private static class RetryWorkload implements Workload {
+
+		private final Workload workload;
+		private int attempt;
+		private long dueTime;
+
+		public RetryWorkload(Workload workload) {
+			this.workload = workload;
+		}
+
+		private boolean isDue(TaskScheduler clock) {
+			return clock.nanoTime() - dueTime >= 0;
+		}
+
+		@Override
+		public boolean compute() {
+			return workload.compute();
+		}
+
+		@Override
+		public void recycle() {
+			workload.recycle();
+		}
+
+		@Override
+		public int cost() {
+			return workload.cost();
+		}
+
+		@Override
+		public Object source() {
+			return workload.source();
+		}
+
+	}
+
+	/**
+	 * Free lists of consumer and int workloads owned by a single workload
+	 * runnable. Synchronized since workloads can be added from a different thread
+	 * than the one computing them.
+	 */
+	private static class WorkloadPool {
+
+		private static final int MAX_POOLED = 256;
+
+		private final ConsumerWorkload<?>[] consumerWorkloads = new ConsumerWorkload<?>[MAX_POOLED];
+		private final IntWorkload[] intWorkloads = new IntWorkload[MAX_POOLED];
+		private int consumerCount, intCount;
+
+		@SuppressWarnings("unchecked")
+		public synchronized <T> ConsumerWorkload<T> consumer(T t, Consumer<? super T> consumer) {
+			if (consumerCount == 0) {
+				ConsumerWorkload<T> workload = new ConsumerWorkload<T>(t, consumer);
+				workload.pool = this;
+				return workload;
+			}
+			ConsumerWorkload<T> workload = (ConsumerWorkload<T>) consumerWorkloads[--consumerCount];
+			consumerWorkloads[consumerCount] = null;
+			workload.t = t;
+			workload.consumer = consumer;
+			return workload;
+		}
+
+		public synchronized IntWorkload intWorkload(int i, IntConsumer consumer) {
+			if (intCount == 0) {
+				IntWorkload workload = new IntWorkload(i, consumer);
+				workload.pool = this;
+				return workload;
+			}
+			IntWorkload workload = intWorkloads[--intCount];
+			intWorkloads[intCount] = null;
+			workload.i = i;
+			workload.consumer = consumer;
+			return workload;
+		}
+
+		public synchronized void release(ConsumerWorkload<?> workload) {
+			workload.t = null;
+			workload.consumer = null;
+			if (consumerCount < MAX_POOLED) consumerWorkloads[consumerCount++] = workload;
+		}
+
+		public synchronized void release(IntWorkload workload) {
+			workload.consumer = null;
+			if (intCount < MAX_POOLED) intWorkloads[intCount++] = workload;
+		}
+
 	}
 
 	public static class SupplierWorkload<T> implements Workload {
 
-		private Supplier<T> supplier;
+		private volatile Supplier<T> supplier;
 		private CompletableFuture<T> future;
 		private T t;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		// set before the supplier of a follow-up, so a non null supplier means these are visible
+		private volatile boolean queued, async;
 
 		public SupplierWorkload(Supplier<T> supplier) {
 			this.supplier = supplier;
 			this.future = new CompletableFuture<T>();
 		}
 
+		/**
+		 * Waits for the supplied object. When called from the main thread before the
+		 * workload had its turn, the supplier is run right away instead of waiting
+		 * for the workload, which would never happen. That runs it ahead of the
+		 * workloads queued before it, and it's skipped once its turn comes.
+		 * 
+		 * @return supplied object
+		 * @throws IllegalStateException when called from the main thread on a
+		 *                               workload that isn't queued yet, such as a
+		 *                               follow-up whose upstream isn't supplied,
+		 *                               since waiting for it would block the main
+		 *                               thread forever
+		 */
 		public T join() {
+			if (!future.isDone() && scheduler.isPrimaryThread()) {
+				if (supplier == null || !queued) throw new IllegalStateException(
+						"SupplierWorkload join failure: the workload isn't queued yet, joining it from the main thread would never return!");
+				if (!async) compute();
+			}
 			return future.join();
 		}
 
+		private SupplierWorkload<T> queued() {
+			queued = true;
+			return this;
+		}
+
+		/**
+		 * @return future completed with the supplied object, or exceptionally if the
+		 *         supplier throws
+		 */
+		public CompletableFuture<T> getCompletableFuture() {
+			return future;
+		}
+
+		/**
+		 * Maps the supplied object in a new workload of the main workload, once it's
+		 * supplied. No thread waits in between.
+		 * 
+		 * @param <R>    type of the mapped object
+		 * @param mapper mapper to run in the main thread
+		 * @return supplier workload of the mapped object
+		 */
+		public <R> SupplierWorkload<R> thenApply(Function<? super T, ? extends R> mapper) {
+			return then(mapper, false, workload -> mainWorkload().post(workload));
+		}
+
+		/**
+		 * Maps the supplied object in a bukkit async task, once it's supplied.
+		 * 
+		 * @param <R>    type of the mapped object
+		 * @param mapper mapper to run off the main thread
+		 * @return supplier workload of the mapped object
+		 */
+		public <R> SupplierWorkload<R> thenApplyAsync(Function<? super T, ? extends R> mapper) {
+			return then(mapper, true, workload -> scheduler.runTaskAsynchronously(workload::compute));
+		}
+
+		/**
+		 * Consumes the supplied object in a new workload of the main workload, once
+		 * it's supplied.
+		 * 
+		 * @param consumer consumer to run in the main thread
+		 * @return supplier workload completed once consumed
+		 */
+		public SupplierWorkload<Void> thenAccept(Consumer<? super T> consumer) {
+			return thenApply(value -> {
+				consumer.accept(value);
+				return null;
+			});
+		}
+
+		private <R> SupplierWorkload<R> then(Function<? super T, ? extends R> mapper, boolean async,
+				Consumer<SupplierWorkload<R>> submitter) {
+			SupplierWorkload<R> next = new SupplierWorkload<R>(null);
+			future.whenComplete((value, throwable) -> {
+				if (throwable != null) {
+					next.future.completeExceptionally(throwable);
+					return;
+				}
+				next.queued = true;
+				next.async = async;
+				next.supplier = () -> mapper.apply(value);
+				submitter.accept(next);
+			});
+			return next;
+		}
+
 		@Override
 		public boolean compute() {
-			t = supplier.get();
-			future.complete(t);
+			if (!claimed.compareAndSet(false, true)) return true;
+			try {
+				t = supplier.get();
+				future.complete(t);
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
 			return true;
 		}
 